@@ -2,6 +2,8 @@ package simpledb.common;
 
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.PageRegistry;
+import simpledb.storage.PaxFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -27,6 +29,8 @@ public class Catalog {
         private DbFile file;
         private String tableName;
         private String primaryKeyField;
+        //unlogged表的页不写日志，崩溃后清空而不是恢复
+        private volatile boolean unlogged;
         public Table(DbFile file, String tableName, String primaryKeyField){
             this.file = file;
             this.tableName = tableName;
@@ -140,6 +144,45 @@ public class Catalog {
         throw new NoSuchElementException("No DatabaseFile with tableid:" + tableid + " is found");
     }
 
+    /**
+     * Mark the specified table as unlogged, or as logged again.  Changes to
+     * the pages of an unlogged table are not written to the log, so they are
+     * not recovered: recovery truncates the table instead.
+     *
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void setUnlogged(int tableid, boolean unlogged) {
+        for(Table table: tables){
+            if(table.file.getId() == tableid){
+                table.unlogged = unlogged;
+                return;
+            }
+        }
+        throw new NoSuchElementException("No DatabaseFile with tableid:" + tableid + " is found");
+    }
+
+    /**
+     * Return whether the specified table is unlogged; false if it doesn't
+     * exist.
+     */
+    public boolean isUnlogged(int tableid) {
+        for(Table table: tables){
+            if(table.file.getId() == tableid){
+                return table.unlogged;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Call {@link DbFile#sync} on the file of every table.
+     */
+    public void syncFiles() throws IOException {
+        for (Table table : new ArrayList<>(tables)) {
+            table.file.sync();
+        }
+    }
+
     public Iterator<Integer> tableIdIterator() {
         List<Integer> list = new ArrayList<>();
         for(Table item: tables){
@@ -171,6 +214,12 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the form "name (field type [pk], ...)", optionally
+     * followed by the table options "unlogged", "mapped", which maps the
+     * table file into memory for reads, "varlen", which stores the
+     * table in variable-length records, "compressed", which compresses the
+     * columns of each page, and "pax", which stores it column by column in a
+     * {@link PaxFile}.
      *
      * @param catalogFile
      */
@@ -185,6 +234,27 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                //表定义后面可以跟unlogged、mapped、varlen、compressed、pax
+                String options = line.substring(line.indexOf(")") + 1).trim();
+                boolean unlogged = false;
+                boolean mapped = false;
+                int pageType = PageRegistry.HEAP_PAGE;
+                for (String option : options.isEmpty() ? new String[0] : options.split("\\s+")) {
+                    if (option.equalsIgnoreCase("unlogged"))
+                        unlogged = true;
+                    else if (option.equalsIgnoreCase("mapped"))
+                        mapped = true;
+                    else if (option.equalsIgnoreCase("varlen"))
+                        pageType = PageRegistry.VARLEN_HEAP_PAGE;
+                    else if (option.equalsIgnoreCase("compressed"))
+                        pageType = PageRegistry.COMPRESSED_HEAP_PAGE;
+                    else if (option.equalsIgnoreCase("pax"))
+                        pageType = PageRegistry.PAX_PAGE;
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 String[] els = fields.split(",");
                 List<String> names = new ArrayList<>();
                 List<Type> types = new ArrayList<>();
@@ -212,8 +282,13 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tabFile = new File(baseFolder + "/" + name + ".dat");
+                HeapFile tabHf = pageType == PageRegistry.PAX_PAGE
+                        ? new PaxFile(tabFile, t)
+                        : new HeapFile(tabFile, t, pageType);
+                tabHf.setMemoryMapped(mapped);
                 addTable(tabHf, name, primaryKey);
+                setUnlogged(tabHf.getId(), unlogged);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
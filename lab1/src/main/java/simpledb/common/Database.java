@@ -66,6 +66,13 @@ public class Database {
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF = null;
+        getBufferPool().stopWriter();
+        try {
+            // committed pages may only be in the log and the old pool
+            getBufferPool().flushCommittedPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
@@ -79,6 +86,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // the background threads of the old instance go with it
+        Database old = _instance.get();
+        old._bufferpool.stopWriter();
+        old._logfile.stopFlusher();
         _instance.set(new Database());
     }
 
@@ -115,6 +115,8 @@ public class Utility {
         fos.close();
 
         HeapFile hf = openHeapFile(cols, f);
+        // a free space map left by an earlier file of this name does not apply
+        hf.getFreeSpaceMap().clear();
         HeapPageId pid = new HeapPageId(hf.getId(), 0);
 
         HeapPage page = null;
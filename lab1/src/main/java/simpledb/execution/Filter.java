@@ -45,6 +45,10 @@ public class Filter extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
+        //扫描时就先过滤，不满足的tuple不用解码
+        if(child instanceof SeqScan){
+            ((SeqScan) child).setFilter(predicate);
+        }
         child.open();
         while(child.hasNext()){
             Tuple tuple = child.next();
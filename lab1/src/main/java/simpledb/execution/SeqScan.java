@@ -28,6 +28,10 @@ public class SeqScan implements OpIterator {
     private TransactionId transactionId;
     private int tableId;
     private String tableAlias;
+    //只扫描这些列，null表示所有列
+    private int[] columns;
+    //只返回满足该谓词的tuple，null表示不过滤
+    private Predicate filter;
     private DbFileIterator iterator;
 
     /**
@@ -49,6 +53,23 @@ public class SeqScan implements OpIterator {
         this.tableAlias = tableAlias;
     }
 
+    /**
+     * Creates a sequential scan over the specified columns of the specified
+     * table.  The returned tuples have just those fields, in the specified
+     * order; files that store columns apart, such as
+     * {@link simpledb.storage.PaxFile}, do not decode the others.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan.
+     * @param tableAlias the alias of this table, as above
+     * @param columns    the indexes of the columns to return
+     * @see DbFile#iterator(TransactionId, int[])
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int[] columns) {
+        this(tid, tableid, tableAlias);
+        this.columns = columns.clone();
+    }
+
     /**
      * @return return the table name of the table the operator scans. This should
      *         be the actual name of the table in the catalog of the database
@@ -67,7 +88,8 @@ public class SeqScan implements OpIterator {
     }
 
     /**
-     * Reset the tableid, and tableAlias of this operator.
+     * Reset the tableid, and tableAlias of this operator.  The scan returns
+     * all the columns of the new table.
      *
      * @param tableid    the table to scan.
      * @param tableAlias the alias of this table (needed by the parser); the returned
@@ -80,12 +102,26 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableAlias = tableAlias;
         this.tableId = tableid;
+        this.columns = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /**
+     * Makes the scan return only the tuples that pass the specified
+     * predicate, from the next call to {@link #open} on.  The predicate
+     * refers to the fields of the tuples the scan returns; it is handed to
+     * the file, which checks it before decoding the rest of the tuple.
+     *
+     * @param predicate the predicate, or null to return every tuple
+     * @see DbFile#iterator(TransactionId, int[], Predicate)
+     */
+    public void setFilter(Predicate predicate) {
+        this.filter = predicate;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         /*
         Catalog catalog = Database.getCatalog();
@@ -100,7 +136,18 @@ public class SeqScan implements OpIterator {
         iterator = (DbFileIterator) tuples.iterator();
         iterator.open();*/
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        DbFileIterator dbFileIterator = dbFile.iterator(transactionId);
+        DbFileIterator dbFileIterator;
+        if (filter == null) {
+            dbFileIterator = columns == null
+                    ? dbFile.iterator(transactionId)
+                    : dbFile.iterator(transactionId, columns);
+        } else {
+            //文件里的谓词指的是完整tuple的字段
+            Predicate predicate = columns == null
+                    ? filter
+                    : new Predicate(columns[filter.getField()], filter.getOp(), filter.getOperand());
+            dbFileIterator = dbFile.iterator(transactionId, columns, predicate);
+        }
         this.iterator = dbFileIterator;
         iterator.open();
     }
@@ -117,6 +164,9 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(tableId);
+        if(columns != null){
+            tupleDesc = tupleDesc.project(columns);
+        }
         if(tableAlias != null && !tableAlias.equals("")){
             int numFields = tupleDesc.numFields();
             Type[] types = new Type[numFields];
@@ -11,7 +11,9 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BTreeFile is an implementation of a DbFile that stores a B+ tree.
@@ -33,6 +35,31 @@ public class BTreeFile implements DbFile {
     private final int tableid;
     //索引字段
     private final int keyField;
+    //一直打开的FileChannel，页的读写都用positional I/O
+    private final DataFileChannel channel;
+
+    /**
+     * Tree latch guarding structure modifications (splits, merges and
+     * redistributions).  Structure modifications hold it in write mode while
+     * they change pages; the optimistic insert path holds it in read mode
+     * while it descends and touches a single leaf, so such inserts run in
+     * parallel with each other.  Like page latches it is never held while
+     * waiting for a transactional lock: a structure modification that has
+     * to wait for a page lock releases it for the wait, see
+     * {@link #getPage(TransactionId, Map, BTreePageId, Permissions)}.
+     */
+    private final ReentrantReadWriteLock treeLatch = new ReentrantReadWriteLock();
+
+    /**
+     * Number of structure modifications in progress, including ones waiting
+     * for a lock with the tree latch released.  While it is not zero the
+     * tree may be half modified, so an optimistic insert does not trust its
+     * descent.  Only changed with the tree latch held in write mode.
+     */
+    private int structureChanges = 0;
+
+    /** How many times an optimistic insert re-validates its leaf before falling back. */
+    private static final int OPTIMISTIC_RETRIES = 3;
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -47,6 +74,7 @@ public class BTreeFile implements DbFile {
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.channel = new DataFileChannel(f);
     }
 
     /**
@@ -88,10 +116,10 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+                int retval = channel.read(ByteBuffer.wrap(pageBuf), 0);
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -103,12 +131,7 @@ public class BTreeFile implements DbFile {
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+                int retval = channel.read(ByteBuffer.wrap(pageBuf), pageOffset(id.getPageNumber()));
                 if (retval == -1) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
@@ -128,8 +151,11 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    // the root pointer page comes first, then the pages numbered from 1
+    private static long pageOffset(int pageNumber) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pageNumber - 1) * BufferPool.getPageSize();
     }
 
     /**
@@ -142,14 +168,18 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel.write(ByteBuffer.wrap(data), 0);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel.write(ByteBuffer.wrap(data), pageOffset(page.getId().getPageNumber()));
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void truncate() throws IOException {
+        synchronized (this) {
+            // an empty file gets a new root pointer page and root on first use
+            channel.truncate(0);
         }
     }
 
@@ -192,13 +222,29 @@ public class BTreeFile implements DbFile {
             return page;
         }
         BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, perm);
+        BTreePageId childId = findChildId(page, f);
+        if (childId == null) {
+            return null;
+        }
+        return findLeafPage(tid, dirtypages, childId, perm, f);
+    }
+
+    /**
+     * Choose the child of an internal page that covers the key field f, i.e. the
+     * left child of the first entry whose key is greater than or equal to f, or the
+     * right child of the last entry. If f is null, the left-most child is returned.
+     *
+     * @param page - the internal page being searched
+     * @param f    - the field to search for
+     * @return the id of the child page to descend into, or null if the page has no entries
+     */
+    private BTreePageId findChildId(BTreeInternalPage page, Field f) {
         //通过BTreeInternalPage的迭代器来查看InternalPage有没有满足要求的key
         Iterator<BTreeEntry> iterator = page.iterator();
         BTreeEntry next = null;
         if (f == null) {//f为null返回最左端的叶子节点
             if (iterator.hasNext()) {
-                next = iterator.next();
-                return findLeafPage(tid, dirtypages, next.getLeftChild(), perm, f);
+                return iterator.next().getLeftChild();
             }
             return null;
         }
@@ -207,15 +253,49 @@ public class BTreeFile implements DbFile {
             Field key = next.getKey();
             if (f.compare(Op.LESS_THAN_OR_EQ, key)) {
                 // 当有重复值的时候 节点分裂有可能一般在左边一半在右边，所以是小于等于
-                return findLeafPage(tid, dirtypages, next.getLeftChild(), perm, f);
+                return next.getLeftChild();
             }
         }
         if (next != null) {
-            return findLeafPage(tid, dirtypages, next.getRightChild(), perm, f);
+            return next.getRightChild();
         }
         return null;
     }
 
+    /**
+     * Latch-coupled descent from the root pointer to the leaf page covering the key
+     * field f. No transactional locks are taken: each page is fetched read-latched
+     * with {@link BufferPool#getPageUnlocked(PageId)}, and the latch on the parent
+     * is released as soon as the child is latched.
+     * <p>
+     * The caller must hold the tree latch in read mode, so that no split or merge
+     * runs while we walk through the internal pages.
+     *
+     * @param f - the field to search for
+     * @return the id of the left-most leaf page possibly containing f, or null if
+     *         the tree has no root yet
+     */
+    private BTreePageId findLeafPageIdLatched(Field f) throws DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bufferPool.getPageUnlocked(BTreeRootPtrPage.getId(tableid));
+        Page parent = rootPtr;
+        try {
+            BTreePageId pid = rootPtr.getRootId();
+            while (pid != null) {
+                Page page = bufferPool.getPageUnlocked(pid);
+                parent.getLatch().readLock().unlock();
+                parent = page;
+                if (pid.pgcateg() == BTreePageId.LEAF) {
+                    return pid;
+                }
+                pid = findChildId((BTreeInternalPage) page, f);
+            }
+            return null;
+        } finally {
+            parent.getLatch().readLock().unlock();
+        }
+    }
+
     /**
      * Convenience method to find a leaf page when there is no dirtypages HashMap.
      * Used by the BTreeFile iterator.
@@ -258,16 +338,25 @@ public class BTreeFile implements DbFile {
         //新建一个空的叶节点，用于将page的右半边复制过去
         BTreeLeafPage leafPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
         //使用reverseIterator拿后半段
-        Iterator<Tuple> iterator = page.reverseIterator();
-        while(iterator.hasNext() && mid-->0){
-            Tuple tuple = iterator.next();
-            page.deleteTuple(tuple);
-            leafPage.insertTuple(tuple);
+        //搬移期间持有两页的写latch（先左后右），避免其他线程看到只搬了一半的页
+        Tuple midTuple;
+        page.getLatch().writeLock().lock();
+        leafPage.getLatch().writeLock().lock();
+        try {
+            Iterator<Tuple> iterator = page.reverseIterator();
+            while(iterator.hasNext() && mid-->0){
+                Tuple tuple = iterator.next();
+                page.deleteTuple(tuple);
+                leafPage.insertTuple(tuple);
+            }
+            midTuple = iterator.next();
+        } finally {
+            leafPage.getLatch().writeLock().unlock();
+            page.getLatch().writeLock().unlock();
         }
 
         //拿当前page的parent page
         BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), field);
-        Tuple midTuple = iterator.next();
         if(midTuple == null){
             throw new DbException("");
         }
@@ -332,17 +421,25 @@ public class BTreeFile implements DbFile {
         // should be inserted.
         int mid = page.getNumEntries()/2;
         BTreeInternalPage internalPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
-        Iterator<BTreeEntry> riterator = page.reverseIterator();
-        while(riterator.hasNext() && mid-->0){
-            BTreeEntry entry = riterator.next();
-            page.deleteKeyAndRightChild(entry);
-            internalPage.insertEntry(entry);
-        }
-        BTreeEntry up = riterator.next();
-        if(up == null){
-            throw new DbException("No more entry to split");
+        BTreeEntry up;
+        page.getLatch().writeLock().lock();
+        internalPage.getLatch().writeLock().lock();
+        try {
+            Iterator<BTreeEntry> riterator = page.reverseIterator();
+            while(riterator.hasNext() && mid-->0){
+                BTreeEntry entry = riterator.next();
+                page.deleteKeyAndRightChild(entry);
+                internalPage.insertEntry(entry);
+            }
+            up = riterator.next();
+            if(up == null){
+                throw new DbException("No more entry to split");
+            }
+            page.deleteKeyAndRightChild(up);
+        } finally {
+            internalPage.getLatch().writeLock().unlock();
+            page.getLatch().writeLock().unlock();
         }
-        page.deleteKeyAndRightChild(up);
         //up entry往上提，它的左孩子就是page，右孩子就是新的internal page
         up.setLeftChild(page.getId());
         up.setRightChild(internalPage.getId());
@@ -481,7 +578,7 @@ public class BTreeFile implements DbFile {
         if (dirtypages.containsKey(pid)) {
             return dirtypages.get(pid);
         } else {
-            Page p = Database.getBufferPool().getPage(tid, pid, perm);
+            Page p = lockPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
                 dirtypages.put(pid, p);
             }
@@ -489,6 +586,43 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    // 结构修改持有tree latch时不能等锁：锁拿不到就先放开latch，等到锁再latch回来。
+    // 这期间树可能只改了一半，但改过的页都持有写锁，加锁走下来的路径会等在这些页上，
+    // 乐观插入则看structureChanges
+    private Page lockPage(TransactionId tid, BTreePageId pid, Permissions perm)
+            throws DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        if (!treeLatch.isWriteLockedByCurrentThread()) {
+            return bufferPool.getPage(tid, pid, perm);
+        }
+        Page p = bufferPool.tryGetPage(tid, pid, perm);
+        if (p != null) {
+            return p;
+        }
+        int holds = treeLatch.getWriteHoldCount();
+        for (int i = 0; i < holds; i++) {
+            treeLatch.writeLock().unlock();
+        }
+        try {
+            return bufferPool.getPage(tid, pid, perm);
+        } finally {
+            for (int i = 0; i < holds; i++) {
+                treeLatch.writeLock().lock();
+            }
+        }
+    }
+
+    // 开始结构修改：拿tree latch写锁并登记，与endStructureChange配对
+    private void beginStructureChange() {
+        treeLatch.writeLock().lock();
+        structureChanges++;
+    }
+
+    private void endStructureChange() {
+        structureChanges--;
+        treeLatch.writeLock().unlock();
+    }
+
     /**
      * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
      * May cause pages to split if the page where tuple t belongs is full.
@@ -501,29 +635,101 @@ public class BTreeFile implements DbFile {
      */
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        Map<PageId, Page> dirtypages = new HashMap<>();
+        List<Page> dirtied = insertTupleOptimistic(tid, t);
+        if (dirtied != null) {
+            return dirtied;
+        }
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
+        // the leaf may have to be split: fall back to the pessimistic path, which
+        // write-locks the whole root-to-leaf path and excludes other descents
+        beginStructureChange();
+        try {
+            Map<PageId, Page> dirtypages = new HashMap<>();
 
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
+            // get a read lock on the root pointer page and use it to locate the root page
+            BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+            BTreePageId rootId = rootPtr.getRootId();
+
+            if (rootId == null) { // the root has just been created, so set the root pointer to point to it
+                rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+                rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                rootPtr.setRootId(rootId);
+            }
+
+            // find and lock the left-most leaf page corresponding to the key field,
+            // and split the leaf page if there are no more slots available
+            BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+            if (leafPage.getNumEmptySlots() == 0) {
+                leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            }
+
+            // insert the tuple into the leaf page
+            leafPage.insertTuple(t);
+
+            return new ArrayList<>(dirtypages.values());
+        } finally {
+            endStructureChange();
         }
+    }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+    /**
+     * Optimistic insert (Bayer-Schkolnick): descend with latch coupling only, then
+     * lock just the target leaf. Internal pages and the root pointer are never
+     * locked, so inserts into different leaves proceed in parallel.
+     * <p>
+     * The leaf lock may block, so it is acquired with no latch held. Once we hold
+     * it the key range of the leaf can no longer change (splitting, merging or
+     * stealing from it needs the same lock), so a second descent that arrives at
+     * the same leaf proves it is still the right one.
+     *
+     * @param tid - the transaction id
+     * @param t   - the tuple to insert
+     * @return the dirtied leaf page, or null if the leaf is full (or keeps moving
+     *         under us) and the caller must take the pessimistic path
+     */
+    private List<Page> insertTupleOptimistic(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (f.length() == 0) {
+            return null;
         }
+        Field key = t.getField(keyField);
+        BufferPool bufferPool = Database.getBufferPool();
+        for (int attempt = 0; attempt < OPTIMISTIC_RETRIES; attempt++) {
+            BTreePageId leafId;
+            treeLatch.readLock().lock();
+            try {
+                leafId = findLeafPageIdLatched(key);
+            } finally {
+                treeLatch.readLock().unlock();
+            }
+            if (leafId == null) {
+                return null;
+            }
 
-        // insert the tuple into the leaf page
-        leafPage.insertTuple(t);
+            boolean heldBefore = bufferPool.holdsLock(tid, leafId);
+            BTreeLeafPage leafPage = (BTreeLeafPage) bufferPool.getPage(tid, leafId, Permissions.READ_WRITE);
+
+            treeLatch.readLock().lock();
+            try {
+                if (structureChanges == 0 && leafId.equals(findLeafPageIdLatched(key))) {
+                    if (leafPage.getNumEmptySlots() == 0) {
+                        return null;
+                    }
+                    leafPage.insertTuple(t);
+                    return Collections.singletonList(leafPage);
+                }
+            } finally {
+                treeLatch.readLock().unlock();
+            }
 
-        return new ArrayList<>(dirtypages.values());
+            // the leaf split or merged before we got the lock, or a split or merge
+            // waiting for a lock may have left the tree half modified; we haven't
+            // touched the leaf
+            if (!heldBefore) {
+                bufferPool.unsafeReleasePage(tid, leafId);
+            }
+        }
+        return null;
     }
 
     /**
@@ -1014,7 +1220,12 @@ public class BTreeFile implements DbFile {
         // or merge with one of the siblings
         int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
         if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+            beginStructureChange();
+            try {
+                handleMinOccupancyPage(tid, dirtypages, page);
+            } finally {
+                endStructureChange();
+            }
         }
 
         return new ArrayList<>(dirtypages.values());
@@ -1035,13 +1246,10 @@ public class BTreeFile implements DbFile {
         synchronized (this) {
             if (f.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                channel.write(ByteBuffer.wrap(emptyRootPtrData), 0);
+                channel.write(ByteBuffer.wrap(emptyLeafData), emptyRootPtrData.length);
             }
         }
 
@@ -1095,11 +1303,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                channel.write(ByteBuffer.wrap(emptyData), f.length());
                 emptyPageNo = numPages();
             }
         }
@@ -1129,10 +1334,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel.write(ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().removePage(newPageId);
@@ -12,6 +12,8 @@ import simpledb.transaction.TransactionId;
 import java.io.*;
 import java.util.Arrays;
 import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of BTreeHeaderPage stores data for one page of a BTreeFile and
@@ -34,7 +36,8 @@ public class BTreeHeaderPage implements Page {
     private int prevPage; // previous header page or 0
 
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
 
     /**
      * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -78,7 +81,12 @@ public class BTreeHeaderPage implements Page {
      * Initially mark all slots in the header used.
      */
     public void init() {
-        Arrays.fill(header, (byte) 0xFF);
+        latch.writeLock().lock();
+        try {
+            Arrays.fill(header, (byte) 0xFF);
+        } finally {
+            latch.writeLock().unlock();
+        }
     }
 
     /**
@@ -122,6 +130,10 @@ public class BTreeHeaderPage implements Page {
         }
     }
 
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -141,6 +153,16 @@ public class BTreeHeaderPage implements Page {
      * @see #BTreeHeaderPage
      */
     public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return getPageDataLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private byte[] getPageDataLatched() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -223,6 +245,16 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setPrevPageId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setPrevPageIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setPrevPageIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             prevPage = 0;
         } else {
@@ -243,6 +275,16 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setNextPageId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setNextPageIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setNextPageIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             nextPage = 0;
         } else {
@@ -288,6 +330,16 @@ public class BTreeHeaderPage implements Page {
      * Abstraction to mark a page of the BTreeFile used or unused
      */
     public void markSlotUsed(int i, boolean value) {
+        latch.writeLock().lock();
+        try {
+            markSlotUsedLatched(i, value);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void markSlotUsedLatched(int i, boolean value) {
         int headerbit = i % 8;
         int headerbyte = (i - headerbit) / 8;
 
@@ -304,6 +356,16 @@ public class BTreeHeaderPage implements Page {
      * @return the index of the first empty slot or -1 if none exists
      */
     public int getEmptySlot() {
+        latch.readLock().lock();
+        try {
+            return getEmptySlotLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private int getEmptySlotLatched() {
         for (int i = 0; i < header.length; i++) {
             if ((int) header[i] != 0xFF) {
                 for (int j = 0; j < 8; j++) {
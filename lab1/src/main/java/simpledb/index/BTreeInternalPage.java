@@ -6,6 +6,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.SlottedPage;
 
 import java.io.*;
 import java.util.Iterator;
@@ -18,7 +19,7 @@ import java.util.NoSuchElementException;
  * @see BTreeFile
  * @see BufferPool
  */
-public class BTreeInternalPage extends BTreePage {
+public class BTreeInternalPage extends BTreePage implements SlottedPage {
     private final byte[] header;
     private final Field[] keys;
     private final int[] children;
@@ -233,6 +234,16 @@ public class BTreeInternalPage extends BTreePage {
      * @see #BTreeInternalPage
      */
     public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return getPageDataLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private byte[] getPageDataLatched() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -347,6 +358,16 @@ public class BTreeInternalPage extends BTreePage {
      *                     already empty.
      */
     private void deleteEntry(BTreeEntry e, boolean deleteRightChild) throws DbException {
+        latch.writeLock().lock();
+        try {
+            deleteEntryLatched(e, deleteRightChild);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void deleteEntryLatched(BTreeEntry e, boolean deleteRightChild) throws DbException {
         RecordId rid = e.getRecordId();
         if (rid == null)
             throw new DbException("tried to delete entry with null rid");
@@ -406,6 +427,16 @@ public class BTreeInternalPage extends BTreePage {
      *                     order on the page
      */
     public void updateEntry(BTreeEntry e) throws DbException {
+        latch.writeLock().lock();
+        try {
+            updateEntryLatched(e);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void updateEntryLatched(BTreeEntry e) throws DbException {
         RecordId rid = e.getRecordId();
         if (rid == null)
             throw new DbException("tried to update entry with null rid");
@@ -446,6 +477,16 @@ public class BTreeInternalPage extends BTreePage {
      *                     table id, or child page category is a mismatch, or the entry is invalid
      */
     public void insertEntry(BTreeEntry e) throws DbException {
+        latch.writeLock().lock();
+        try {
+            insertEntryLatched(e);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void insertEntryLatched(BTreeEntry e) throws DbException {
         if (!e.getKey().getType().equals(td.getFieldType(keyField)))
             throw new DbException("key field type mismatch, in insertEntry");
 
@@ -571,6 +612,16 @@ public class BTreeInternalPage extends BTreePage {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
+        latch.readLock().lock();
+        try {
+            return getNumEmptySlotsLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private int getNumEmptySlotsLatched() {
         int cnt = 0;
         // start from 1 because the first key slot is not used
         // since a node with m keys has m+1 pointers
@@ -589,6 +640,29 @@ public class BTreeInternalPage extends BTreePage {
         return (header[headerbyte] & (1 << headerbit)) != 0;
     }
 
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * An entry is split between the key array (which has no slot 0) and the
+     * child pointer array, both following the parent pointer, the child
+     * category byte and the header.
+     */
+    public int[] getSlotRanges(int i) {
+        int keySize = td.getFieldType(keyField).getLen();
+        int keysStart = INDEX_SIZE + 1 + header.length;
+        int childrenStart = keysStart + (numSlots - 1) * keySize;
+        if (i == 0) {
+            return new int[]{childrenStart, INDEX_SIZE};
+        }
+        return new int[]{keysStart + (i - 1) * keySize, keySize, childrenStart + i * INDEX_SIZE, INDEX_SIZE};
+    }
+
+    public BTreeInternalPage newInstance(byte[] data) throws IOException {
+        return new BTreeInternalPage(pid, data, keyField);
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -627,6 +701,16 @@ public class BTreeInternalPage extends BTreePage {
      * @throws NoSuchElementException
      */
     protected Field getKey(int i) throws NoSuchElementException {
+        latch.readLock().lock();
+        try {
+            return getKeyLatched(i);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private Field getKeyLatched(int i) throws NoSuchElementException {
 
         // key at slot 0 is not used
         if (i <= 0 || i >= keys.length)
@@ -654,6 +738,16 @@ public class BTreeInternalPage extends BTreePage {
      * @throws NoSuchElementException
      */
     protected BTreePageId getChildId(int i) throws NoSuchElementException {
+        latch.readLock().lock();
+        try {
+            return getChildIdLatched(i);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private BTreePageId getChildIdLatched(int i) throws NoSuchElementException {
 
         if (i < 0 || i >= children.length)
             throw new NoSuchElementException();
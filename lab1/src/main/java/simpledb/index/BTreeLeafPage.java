@@ -15,7 +15,7 @@ import java.util.NoSuchElementException;
  * @see BTreeFile
  * @see BufferPool
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
     private final byte[] header;
     private final Tuple[] tuples;
     private final int numSlots;
@@ -198,6 +198,16 @@ public class BTreeLeafPage extends BTreePage {
      * @see #BTreeLeafPage
      */
     public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return getPageDataLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private byte[] getPageDataLatched() {
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -287,6 +297,16 @@ public class BTreeLeafPage extends BTreePage {
      *                     already empty.
      */
     public void deleteTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            deleteTupleLatched(t);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void deleteTupleLatched(Tuple t) throws DbException {
         RecordId rid = t.getRecordId();
         if (rid == null)
             throw new DbException("tried to delete tuple with null rid");
@@ -308,6 +328,16 @@ public class BTreeLeafPage extends BTreePage {
      *                     is mismatch.
      */
     public void insertTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            insertTupleLatched(t);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void insertTupleLatched(Tuple t) throws DbException {
         if (!t.getTupleDesc().equals(td))
             throw new DbException("type mismatch, in addTuple");
 
@@ -403,6 +433,16 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setLeftSiblingId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setLeftSiblingIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setLeftSiblingIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             leftSibling = 0;
         } else {
@@ -423,6 +463,16 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setRightSiblingId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setRightSiblingIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setRightSiblingIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             rightSibling = 0;
         } else {
@@ -447,6 +497,16 @@ public class BTreeLeafPage extends BTreePage {
      * Returns the number of empty slots on this page.
      */
     public int getNumEmptySlots() {
+        latch.readLock().lock();
+        try {
+            return getNumEmptySlotsLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private int getNumEmptySlotsLatched() {
         int cnt = 0;
         for (int i = 0; i < numSlots; i++)
             if (!isSlotUsed(i))
@@ -463,6 +523,21 @@ public class BTreeLeafPage extends BTreePage {
         return (header[headerbyte] & (1 << headerbit)) != 0;
     }
 
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * Tuple slots follow the parent and sibling pointers and the header.
+     */
+    public int[] getSlotRanges(int i) {
+        return new int[]{3 * INDEX_SIZE + header.length + i * td.getSize(), td.getSize()};
+    }
+
+    public BTreeLeafPage newInstance(byte[] data) throws IOException {
+        return new BTreeLeafPage(pid, data, keyField);
+    }
+
     /**
      * Abstraction to fill or clear a slot on this page.
      */
@@ -501,6 +576,16 @@ public class BTreeLeafPage extends BTreePage {
      * @throws NoSuchElementException
      */
     Tuple getTuple(int i) throws NoSuchElementException {
+        latch.readLock().lock();
+        try {
+            return getTupleLatched(i);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private Tuple getTupleLatched(int i) throws NoSuchElementException {
 
         if (i >= tuples.length)
             throw new NoSuchElementException();
@@ -9,6 +9,9 @@ import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and
  * implements the Page interface that is used by BufferPool.
@@ -28,7 +31,8 @@ public abstract class BTreePage implements Page {
 
     protected int parent; // parent is always internal node or 0 for root node
     protected byte[] oldData;
-    protected final Byte oldDataLock = (byte) 0;
+    protected final Object oldDataLock = new Object();
+    protected final ReadWriteLock latch = new ReentrantReadWriteLock();
 
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -66,6 +70,10 @@ public abstract class BTreePage implements Page {
         return pid;
     }
 
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * Static method to generate a byte array corresponding to an empty
      * BTreePage.
@@ -99,6 +107,16 @@ public abstract class BTreePage implements Page {
      * @throws DbException if the id is not valid
      */
     public void setParentId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setParentIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setParentIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             throw new DbException("parent id must not be null");
         }
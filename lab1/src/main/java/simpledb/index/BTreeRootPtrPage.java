@@ -6,6 +6,8 @@ import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * BTreeRootPtrPage stores the pointer to the root node used in the B+ tree and
@@ -27,6 +29,7 @@ public class BTreeRootPtrPage implements Page {
     private int header;
 
     private byte[] oldData;
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
 
     /**
      * Constructor.
@@ -55,6 +58,10 @@ public class BTreeRootPtrPage implements Page {
         oldData = getPageData().clone();
     }
 
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -83,6 +90,16 @@ public class BTreeRootPtrPage implements Page {
      * @return A byte array corresponding to the bytes of this root pointer page.
      */
     public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return getPageDataLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private byte[] getPageDataLatched() {
         ByteArrayOutputStream baos = new ByteArrayOutputStream(PAGE_SIZE);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -175,6 +192,16 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setRootId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setRootIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setRootIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             root = 0;
         } else {
@@ -208,6 +235,16 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setHeaderId(BTreePageId id) throws DbException {
+        latch.writeLock().lock();
+        try {
+            setHeaderIdLatched(id);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void setHeaderIdLatched(BTreePageId id) throws DbException {
         if (id == null) {
             header = 0;
         } else {
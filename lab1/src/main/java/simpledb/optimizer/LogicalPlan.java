@@ -322,7 +322,11 @@ public class LogicalPlan {
             LogicalScanNode table = tableIt.next();
             SeqScan ss = null;
             try {
-                ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                int[] columns = referencedColumns(table);
+                ss = columns == null
+                        ? new SeqScan(t, tableId, table.alias)
+                        : new SeqScan(t, tableId, table.alias, columns);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -364,7 +368,9 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().indexForFieldName(lf.fieldQuantifiedName), lf.p, f);
+            //统计信息按表的完整列编号，扫描可能只取了部分列
+            TupleDesc tableTd = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias));
+            double sel = s.estimateSelectivity(tableTd.indexForFieldName(lf.fieldPureName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -503,6 +509,58 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Returns the columns of the table scanned under the specified alias
+     * that the query refers to, in the order of the table, so that the scan
+     * does not read the others.
+     *
+     * @return the indexes of the columns, or null to scan all of them: the
+     *         query selects * or refers to every column, or to none
+     */
+    private int[] referencedColumns(LogicalScanNode table) {
+        Set<String> names = new HashSet<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*")) {
+                return null;
+            }
+            names.add(si.fname);
+        }
+        for (LogicalFilterNode lf : filters) {
+            names.add(lf.fieldQuantifiedName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode)) {
+                names.add(lj.f2QuantifiedName);
+            }
+        }
+        if (hasAgg) {
+            names.add(aggField);
+            if (groupByField != null) {
+                names.add(groupByField);
+            }
+        }
+        if (hasOrderBy) {
+            names.add(oByField);
+        }
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        List<Integer> columns = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (names.contains(table.alias + "." + td.getFieldName(i))) {
+                columns.add(i);
+            }
+        }
+        if (columns.isEmpty() || columns.size() == td.numFields()) {
+            return null;
+        }
+        int[] result = new int[columns.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = columns.get(i);
+        }
+        return result;
+    }
+
     public static void main(String[] argv) {
         // construct a 3-column table schema
         Type[] types = new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE};
@@ -10,6 +10,7 @@ import simpledb.util.LRUCache;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -39,7 +40,11 @@ public class BufferPool {
     //    private Map<Integer,Page> buffer;
     private LRUCache<PageId,Page> buffer;
     private LockManager lockManager;
-
+    //脏页表：页id -> recLSN，即该页第一条还没有写回磁盘的日志记录的LSN
+    //检查点只记录这张表，不再写回页面
+    private final Map<PageId, Long> dirtyPageTable = new ConcurrentHashMap<>();
+    //后台写回脏页表里的页，和这个pool同生共死
+    private final PageWriter writer;
 
 
     /**
@@ -53,6 +58,17 @@ public class BufferPool {
 //        this.buffer = new HashMap<>(numPages);
         this.buffer  = new LRUCache<>(numPages);
         this.lockManager = new LockManager();
+        this.writer = new PageWriter(this);
+        writer.start();
+    }
+
+    /**
+     * Stop the background {@link PageWriter} of this pool and wait for it.
+     * Called when {@link Database} replaces the pool; the pages of the dirty
+     * page table are left as they are.
+     */
+    public void stopWriter() {
+        writer.shutdown();
     }
 
     public static int getPageSize() {
@@ -88,6 +104,22 @@ public class BufferPool {
             throws TransactionAbortedException, DbException {
 
         //先获取锁
+        lockPage(tid, pid, perm);
+
+        return loadPage(pid);
+    }
+
+    /**
+     * Acquire a lock on the specified page without reading the page, for
+     * callers that write it to its file themselves, e.g.
+     * {@link HeapFile#bulkLoad}.  Waits for the lock like {@link #getPage}.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param pid the ID of the page to lock
+     * @param perm the requested permissions on the page
+     */
+    public void lockPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException {
         boolean lockAcquired = false;
         long start = System.currentTimeMillis();
         long timeout = new Random().nextInt(2000);
@@ -98,18 +130,71 @@ public class BufferPool {
             }
             lockAcquired = lockManager.acquireLock(tid,pid,perm);
         }
+    }
 
-        if (this.buffer.get(pid)==null) {
-            // find the right page in DBFiles
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            if (buffer.getSize() >= numPages) {
-                evictPage();
+    /**
+     * Retrieve the specified page if the lock can be granted right away,
+     * without waiting for other transactions.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws DbException {
+        if (!lockManager.acquireLock(tid, pid, perm)) {
+            return null;
+        }
+        return loadPage(pid);
+    }
+
+    /**
+     * Retrieve the specified page without acquiring a transactional lock.
+     * The page is returned read-latched ({@link Page#getLatch()}); the caller
+     * must release the latch.  A latched page is not evicted, so until then
+     * the returned object is the cached copy of the page.
+     * <p>
+     * Only for callers that never modify the page, e.g. the latch-coupled
+     * descent of a B+ tree through its internal pages.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page getPageUnlocked(PageId pid) throws DbException {
+        while (true) {
+            Page page = loadPage(pid);
+            page.getLatch().readLock().lock();
+            //latch之前页可能已被淘汰，pool里现在是另一个副本
+            if (getCachedPage(pid) == page) {
+                return page;
+            }
+            page.getLatch().readLock().unlock();
+        }
+    }
+
+    /**
+     * 从buffer中取页，不在buffer中则从磁盘读入。
+     * miss的路径要在pool上同步，否则两个线程可能同时读入同一页，
+     * 后放入的对象会覆盖先放入的对象，导致对前一个对象的修改丢失
+     */
+    private Page loadPage(PageId pid) throws DbException {
+        Page page = this.buffer.get(pid);
+        if (page != null) {
+            return page;
+        }
+        synchronized (this) {
+            page = this.buffer.get(pid);
+            if (page == null) {
+                // find the right page in DBFiles
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = dbFile.readPage(pid);
+                if (buffer.getSize() >= numPages) {
+                    evictPage();
+                }
+                buffer.put(pid, page);
             }
-            buffer.put(pid, page);
             return page;
         }
-        return this.buffer.get(pid);
     }
 
     /**
@@ -155,16 +240,72 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            transactionComplete(tid, commit, false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Commit or abort a given transaction; release all locks associated to
+     * the transaction.
+     *
+     * @param tid the ID of the transaction requesting the unlock
+     * @param commit a flag indicating whether we should commit or abort
+     * @param asyncCommit on commit, do not wait for the commit record to
+     *        be durable (see {@link LogFile#logCommit(TransactionId, boolean)})
+     * @throws IOException if the log could not be written.  A commit that
+     *         fails this way is rolled back in the buffer pool instead, as
+     *         far as the pool can; after a crash, recovery decides from the
+     *         log whether it committed.  An abort is rolled back anyway.
+     *         The locks are released in both cases.
+     */
+    public void transactionComplete(TransactionId tid, boolean commit, boolean asyncCommit) throws IOException {
+        IOException failure = null;
         if(commit){
             try {
-                flushPages(tid);
+                commitPages(tid, asyncCommit);
             } catch (IOException e) {
-                e.printStackTrace();
+                //COMMIT记录没写成，不能当作提交了：在pool里回滚，别的事务读不到它的修改
+                failure = e;
+                commit = false;
+            }
+        }
+        if(!commit){
+            try {
+                //被淘汰(steal)过的页只能靠日志回滚
+                Database.getLogFile().logAbort(tid);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
             }
-        }else{
             rollback(tid);
+            restoreFreeSpace(tid);
         }
         lockManager.releaseAllLock(tid);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 事务在堆文件页上的插入删除改过空闲空间表，回滚后按页现在的空位数改回来；
+     * 不在pool里的页记为未知，下次插入时再核对
+     */
+    private void restoreFreeSpace(TransactionId tid) {
+        for (PageId pid : lockManager.getWriteLockedPages(tid)) {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (!(file instanceof HeapFile)) {
+                continue;
+            }
+            Page page = getCachedPage(pid);
+            int free = page instanceof HeapFilePage ? ((HeapFilePage) page).getNumUnusedSlots() : FreeSpaceMap.UNKNOWN;
+            ((HeapFile) file).getFreeSpaceMap().update(pid.getPageNumber(), free);
+        }
     }
 
     /**
@@ -226,25 +367,36 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
+        List<Page> dirtyPages = new ArrayList<>();
         LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
         LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
         while(head!=tail){
             Page page = head.value;
             if(page!=null && page.isDirty()!=null){
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                //记录日志
-                try{
-                    Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
-                    Database.getLogFile().force();
-
-                    dbFile.writePage(page);
-                }catch (IOException e){
-                    e.printStackTrace();
-                }
+                dirtyPages.add(page);
             }
             head = head.next;
         }
+        writeLogged(dirtyPages, false);
+        writeBack(Integer.MAX_VALUE, false);
+        Database.getCatalog().syncFiles();
+    }
+
+    /**
+     * 只在pool中查找页，不读磁盘，也不改变LRU顺序；不在pool中返回null
+     */
+    Page getCachedPage(PageId pid) {
+        LRUCache<PageId, Page>.DLinkedNode node = buffer.getCache().get(pid);
+        return node == null ? null : node.value;
+    }
 
+    /**
+     * 用回滚得到的页替换pool中的同一页，不读写磁盘
+     */
+    synchronized void replaceCachedPage(Page page) {
+        if (buffer.getCache().containsKey(page.getId())) {
+            buffer.put(page.getId(), page);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -270,6 +422,25 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Remove every page of the specified table from the buffer pool without
+     * writing it back, as when the table's file is about to be truncated.
+     * The pages' dirty page table entries go with them.
+     */
+    public synchronized void removeTablePages(int tableId) {
+        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
+        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
+        while(head!=tail){
+            LRUCache<PageId, Page>.DLinkedNode next = head.next;
+            PageId key = head.key;
+            if(key!=null && key.getTableId()==tableId){
+                buffer.remove(head);
+                dirtyPageTable.remove(key);
+            }
+            head = next;
+        }
+    }
+
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
@@ -282,10 +453,14 @@ public class BufferPool {
         if(page.isDirty()!=null){
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
             try{
-                Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
-                Database.getLogFile().force();
+                if(isLogged(pid)){
+                    noteDirty(pid);
+                    Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
+                    Database.getLogFile().force();
+                }
                 page.markDirty(false,null);
                 dbFile.writePage(page);
+                dirtyPageTable.remove(pid);
             }catch (IOException e){
                 e.printStackTrace();
             }
@@ -297,37 +472,223 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        List<Page> dirtyPages = new ArrayList<>();
         LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
         LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
         while(head!=tail){
             Page page = head.value;
             if(page!=null && page.isDirty()!=null&&page.isDirty().equals(tid) ){
-                DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
-                //记录日志
-                try{
+                dirtyPages.add(page);
+            }
+            head = head.next;
+        }
+        writeLogged(dirtyPages, true);
+    }
+
+    /**
+     * 先为所有页写UPDATE日志，只force一次日志，再把页写回磁盘。
+     * 原来每写一页都要force一次，一个事务提交就要付出好几次fsync
+     *
+     * @param pages 要写回的脏页
+     * @param clean 写回后是否清除脏标记（提交时为true）
+     */
+    private void writeLogged(List<Page> pages, boolean clean) {
+        if(pages.isEmpty()){
+            return;
+        }
+        try{
+            //记录日志
+            for(Page page : pages){
+                if(isLogged(page.getId())){
+                    noteDirty(page.getId());
                     Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
-                    Database.getLogFile().force();
+                }
+            }
+            Database.getLogFile().force();
+        }catch (IOException e){
+            e.printStackTrace();
+            return;
+        }
+        for(Page page : pages){
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            try{
+                if(clean){
                     page.markDirty(false,null);
-                    dbFile.writePage(page);
+                }
+                dbFile.writePage(page);
+                dirtyPageTable.remove(page.getId());
+                //before image始终是页面在最后一条日志记录时的状态，回滚从这里开始。
+                //unlogged的页没有日志，before image要留着给回滚用
+                if(clean || isLogged(page.getId())){
                     page.setBeforeImage();
-                }catch (IOException e){
-                    e.printStackTrace();
                 }
+            }catch (IOException e){
+                e.printStackTrace();
             }
-            head = head.next;
         }
     }
 
+    /**
+     * NO-FORCE提交：只为事务的脏页写UPDATE日志并写COMMIT记录，日志force到
+     * COMMIT记录为止就算提交完成。页面本身留在pool里，由PageWriter、淘汰或者
+     * 恢复时的redo写回磁盘。
+     * force在pool的锁之外做，这样并发提交的事务可以共用一次fsync。
+     * COMMIT记录写成之后才清脏标记、换before image，写不成时页还能回滚
+     */
+    private void commitPages(TransactionId tid, boolean asyncCommit) throws IOException {
+        List<Page> pages = new ArrayList<>();
+        synchronized (this) {
+            LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
+            LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
+            while(head!=tail){
+                Page page = head.value;
+                if(page!=null && page.isDirty()!=null&&page.isDirty().equals(tid) ){
+                    //unlogged的页也进脏页表，这样才会被写回
+                    noteDirty(page.getId());
+                    if(isLogged(page.getId())){
+                        Database.getLogFile().logWrite(tid,page.getBeforeImage(),page);
+                    }
+                    pages.add(page);
+                }
+                head = head.next;
+            }
+        }
+        Database.getLogFile().logCommit(tid, asyncCommit);
+        synchronized (this) {
+            for (Page page : pages) {
+                page.markDirty(false,null);
+                page.setBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Return a snapshot of the dirty page table: for every page whose
+     * logged changes may not all be in its data file yet, the LSN of the
+     * oldest log record that may be missing there (its recLSN).
+     */
+    public Map<PageId, Long> getDirtyPageTable() {
+        return new HashMap<>(dirtyPageTable);
+    }
+
+    /**
+     * 在写UPDATE日志之前登记recLSN。先登记再写日志，这样检查点拿到的脏页表
+     * 要么已经包含这一页，要么这条日志在检查点记录之后
+     */
+    void noteDirty(PageId pid) {
+        dirtyPageTable.putIfAbsent(pid, Database.getLogFile().getCurrentLsn());
+    }
+
+    //unlogged表的页不写日志
+    private static boolean isLogged(PageId pid) {
+        return !Database.getCatalog().isUnlogged(pid.getTableId());
+    }
+
+    /**
+     * Write back up to maxPages pages of the dirty page table, oldest
+     * recLSN first.  Called by the background {@link PageWriter}.  A page
+     * that a live transaction has modified, or holds a write lock on and
+     * may be modifying, is skipped: its cached image may hold changes that
+     * are not in the log yet.
+     *
+     * @return the number of pages written
+     */
+    synchronized int writeBackDirtyPages(int maxPages) throws IOException {
+        return writeBack(maxPages, true);
+    }
+
+    /**
+     * Write back every page of the dirty page table that no live
+     * transaction has modified.  Committed changes are otherwise only
+     * durable in the log; this is for callers that are about to drop the
+     * buffer pool, e.g. {@link Database#resetBufferPool}.
+     */
+    public synchronized void flushCommittedPages() throws IOException {
+        writeBack(Integer.MAX_VALUE, false);
+    }
+
+    private int writeBack(int maxPages, boolean skipWriteLocked) throws IOException {
+        if (dirtyPageTable.isEmpty()) {
+            return 0;
+        }
+        List<Map.Entry<PageId, Long>> entries = new ArrayList<>(dirtyPageTable.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        // the log records of the pages must be durable before the pages
+        Database.getLogFile().force();
+        int written = 0;
+        for (Map.Entry<PageId, Long> e : entries) {
+            if (written >= maxPages) {
+                break;
+            }
+            PageId pid = e.getKey();
+            //只看一眼，不改变LRU顺序
+            LRUCache<PageId, Page>.DLinkedNode node = buffer.getCache().get(pid);
+            if (node == null) {
+                // the page was written back when it left the pool
+                dirtyPageTable.remove(pid, e.getValue());
+                continue;
+            }
+            Page page = node.value;
+            //持有latch时页面内容不会被修改，检查和写回之间没有空隙
+            page.getLatch().readLock().lock();
+            try {
+                if (page.isDirty() != null || (skipWriteLocked && lockManager.isWriteLocked(pid))) {
+                    continue;
+                }
+                DbFile file;
+                try {
+                    file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                } catch (NoSuchElementException ex) {
+                    //表已经不在catalog里了，没地方写，去掉这一项
+                    dirtyPageTable.remove(pid, e.getValue());
+                    continue;
+                }
+                file.writePage(page);
+                dirtyPageTable.remove(pid, e.getValue());
+                written++;
+            } finally {
+                page.getLatch().readLock().unlock();
+            }
+        }
+        return written;
+    }
+
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized  void evictPage() throws DbException {
         Page page = buffer.getTail().prev.value;
-        if(page!=null && page.isDirty()!=null){//page是脏页
-            findNotDirtyPage();
-        }else{//page不是脏页,直接淘汰掉
+        if(page==null){
             buffer.discard();
+        }else if(page.isDirty()==null && page.getLatch().writeLock().tryLock()){//page不是脏页,直接淘汰掉
+            //有线程持有latch的页正在被使用（比如B+树下降时latch住的内部页），不能淘汰，
+            //否则再读入时同一页会有两个副本；拿着latch直到页离开pool
+            try{
+                writeBackCommitted(page);
+                buffer.discard();
+            }finally {
+                page.getLatch().writeLock().unlock();
+            }
+        }else{//page是脏页或正在使用
+            findNotDirtyPage();
+        }
+    }
+
+    /**
+     * 提交不再写回页面，所以没有脏标记的页也可能带着只在日志里的已提交修改。
+     * 这种页离开pool之前要先写回磁盘（日志先force）
+     */
+    private void writeBackCommitted(Page page) throws DbException {
+        if(page==null || !dirtyPageTable.containsKey(page.getId())){
+            return;
+        }
+        try{
+            Database.getLogFile().force();
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            dirtyPageTable.remove(page.getId());
+        }catch (IOException e){
+            throw new DbException("could not write back page " + page.getId() + ": " + e.getMessage());
         }
     }
 
@@ -336,16 +697,58 @@ public class BufferPool {
         LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail().prev;
         while(tail != head){
             Page curPage = tail.value;
-            if(curPage != null && curPage.isDirty() == null){
-                buffer.remove(tail);
+            if(curPage != null && curPage.isDirty() == null && curPage.getLatch().writeLock().tryLock()){
+                try{
+                    writeBackCommitted(curPage);
+                    buffer.remove(tail);
+                }finally {
+                    curPage.getLatch().writeLock().unlock();
+                }
                 return;
             }
             tail = tail.prev;
         }
-        throw new DbException("No dirty page in BufferPool");
+        stealPage();
+    }
+
+    /**
+     * STEAL：pool里全是脏页时，淘汰最久没用的未提交脏页。
+     * 先为它写UPDATE日志并force(WAL)，再写回磁盘；事务abort时靠这条日志的
+     * before image回滚，提交时这条日志就是它的redo信息
+     */
+    private void stealPage() throws DbException {
+        LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
+        LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail().prev;
+        while(tail != head){
+            Page page = tail.value;
+            //正在被读写(持有latch)的页跳过，不能在pool的锁里等latch；
+            //unlogged的页没有日志可以回滚，不能被steal
+            if(page != null && isLogged(page.getId()) && page.getLatch().writeLock().tryLock()){
+                try{
+                    noteDirty(page.getId());
+                    Database.getLogFile().logWrite(page.isDirty(),page.getBeforeImage(),page);
+                    Database.getLogFile().force();
+                    Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+                    dirtyPageTable.remove(page.getId());
+                    buffer.remove(tail);
+                }catch (IOException e){
+                    throw new DbException("could not steal page " + page.getId() + ": " + e.getMessage());
+                }finally {
+                    page.getLatch().writeLock().unlock();
+                }
+                return;
+            }
+            tail = tail.prev;
+        }
+        throw new DbException("No page in BufferPool can be evicted");
     }
 
 
+    /**
+     * 回滚只在内存里做：把事务弄脏的每一页换成它的before image，不读磁盘，
+     * 也不再经过lockManager。before image是页面在最后一条日志记录时的状态，
+     * 事务写进日志的修改已经由LogFile.rollback撤销过了
+     */
     private synchronized void rollback(TransactionId tid){
         LRUCache<PageId, Page>.DLinkedNode head = buffer.getHead();
         LRUCache<PageId, Page>.DLinkedNode tail = buffer.getTail();
@@ -353,17 +756,11 @@ public class BufferPool {
             Page page = head.value;
             LRUCache<PageId, Page>.DLinkedNode next = head.next;
             if(page!=null && page.isDirty()!=null && page.isDirty().equals(tid)){
-                buffer.remove(head);
-                Page page1 = null;
-                try {
-                    page1 = Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_ONLY);
-                    page1.markDirty(false,null);
-                } catch (TransactionAbortedException e) {
-                    e.printStackTrace();
-                } catch (DbException e) {
-                    e.printStackTrace();
+                if(!isLogged(page.getId())){
+                    //flushAllPages可能已经把未提交的内容写到磁盘上了，要再写回一次
+                    noteDirty(page.getId());
                 }
-
+                buffer.put(page.getId(),page.getBeforeImage());
             }
             head = next;
         }
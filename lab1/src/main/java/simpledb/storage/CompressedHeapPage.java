@@ -0,0 +1,646 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A page of a HeapFile whose columns are compressed.  The page is decoded
+ * when it is read and encoded again on every change, so tuples are handed
+ * out and inserted as in any other page.
+ * <p>
+ * The page starts with the number of slots, an unsigned short, and a bitmap
+ * of the used slots.  Each column follows, as the sequence of its values in
+ * the used slots, in slot order.  A string column first holds its
+ * dictionary, the number of distinct strings as an unsigned short followed
+ * by each string as an unsigned short length and one byte per character;
+ * its sequence is that of the dictionary indexes of its values.  A sequence
+ * of n ints is written in whichever of two encodings is shorter:
+ * <ul>
+ * <li>run-length: a 0 byte, the number of runs as an unsigned short, and
+ * for each run its value and its length as an unsigned short;</li>
+ * <li>frame of reference: a 1 byte, a base int, a bit width w, the number of
+ * exceptions as an unsigned short, each exception as its index in the
+ * sequence (an unsigned short) and its value, and then the n values minus the
+ * base packed in w bits each, least significant bit first (0 for the
+ * exceptions, the values that do not fit in w bits).</li>
+ * </ul>
+ * An image of all zeroes is a page without slots.
+ * <p>
+ * Re-encoding may pick another encoding after any change, but it always
+ * considers the current base and width of each frame-of-reference column,
+ * so one more tuple makes the page grow by a bounded amount and
+ * {@link #getNumUnusedSlots} can promise room to the worst case.
+ */
+public class CompressedHeapPage implements HeapFilePage {
+
+    private static final int MAX_SLOTS = 0xffff;
+    private static final byte RLE = 0;
+    private static final byte FOR = 1;
+    //插入一个tuple后每列编码最多变长多少字节：游程多两段，或者FOR多一个值加一个例外
+    private static final int MAX_COLUMN_GROWTH = 12;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    //解码后的tuple，null表示空slot
+    private Tuple[] tuples;
+    private int numSlots;
+    //字符串列的字典，其它列为null
+    private final List<List<String>> dictionaries = new ArrayList<>();
+    private final List<Map<String, Integer>> dictionaryCodes = new ArrayList<>();
+    //每列上次编码用的FOR参数，重新编码时也会试一下，保证增长有上界
+    private final int[] frameBase;
+    private final int[] frameWidth;
+    private final boolean[] hasFrame;
+    //当前编码后的页数据及其有效长度
+    private byte[] image;
+    private int encodedSize;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+    //页内存latch，只在读写image/tuples时短暂持有，与事务锁无关
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
+    private boolean dirty;
+    private TransactionId transactionId;
+
+    /**
+     * Create a page from its image, in the format described above.
+     *
+     * @throws IOException if the image is not a valid page
+     */
+    public CompressedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int n = td.numFields();
+        frameBase = new int[n];
+        frameWidth = new int[n];
+        hasFrame = new boolean[n];
+        for (int j = 0; j < n; j++) {
+            boolean string = td.getFieldType(j) == Type.STRING_TYPE;
+            dictionaries.add(string ? new ArrayList<>() : null);
+            dictionaryCodes.add(string ? new HashMap<>() : null);
+        }
+        try {
+            decode(ByteBuffer.wrap(data));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("bad compressed page " + id, e);
+        }
+        encode();
+        setBeforeImage();
+    }
+
+    private void decode(ByteBuffer buf) throws IOException {
+        numSlots = buf.getShort() & 0xffff;
+        byte[] bitmap = new byte[(numSlots + 7) / 8];
+        buf.get(bitmap);
+        int used = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (((bitmap[i / 8] >> (i % 8)) & 1) == 1) {
+                used++;
+            }
+        }
+        tuples = new Tuple[numSlots];
+        int[][] columns = new int[td.numFields()][];
+        for (int j = 0; j < td.numFields(); j++) {
+            List<String> dictionary = dictionaries.get(j);
+            if (dictionary != null) {
+                int size = buf.getShort() & 0xffff;
+                for (int k = 0; k < size; k++) {
+                    byte[] bs = new byte[buf.getShort() & 0xffff];
+                    buf.get(bs);
+                    addToDictionary(j, new String(bs, StandardCharsets.ISO_8859_1));
+                }
+            }
+            columns[j] = readInts(buf, used, j);
+        }
+        int k = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (((bitmap[i / 8] >> (i % 8)) & 1) == 0) {
+                continue;
+            }
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, i));
+            for (int j = 0; j < td.numFields(); j++) {
+                List<String> dictionary = dictionaries.get(j);
+                if (dictionary == null) {
+                    t.setField(j, new IntField(columns[j][k]));
+                } else if (columns[j][k] < 0 || columns[j][k] >= dictionary.size()) {
+                    throw new IOException("bad dictionary index on page " + pid);
+                } else {
+                    t.setField(j, new StringField(dictionary.get(columns[j][k]), Type.STRING_LEN));
+                }
+            }
+            tuples[i] = t;
+            k++;
+        }
+    }
+
+    private int[] readInts(ByteBuffer buf, int n, int column) throws IOException {
+        int[] values = new int[n];
+        byte encoding = buf.get();
+        if (encoding == RLE) {
+            int runs = buf.getShort() & 0xffff;
+            int k = 0;
+            for (int r = 0; r < runs; r++) {
+                int value = buf.getInt();
+                int length = buf.getShort() & 0xffff;
+                if (k + length > n) {
+                    throw new IOException("bad run on page " + pid);
+                }
+                Arrays.fill(values, k, k + length, value);
+                k += length;
+            }
+            if (k != n) {
+                throw new IOException("bad runs on page " + pid);
+            }
+        } else if (encoding == FOR) {
+            int base = buf.getInt();
+            int width = buf.get();
+            if (width < 0 || width > 32) {
+                throw new IOException("bad bit width on page " + pid);
+            }
+            int numExceptions = buf.getShort() & 0xffff;
+            int[] positions = new int[numExceptions];
+            int[] exceptions = new int[numExceptions];
+            for (int e = 0; e < numExceptions; e++) {
+                positions[e] = buf.getShort() & 0xffff;
+                exceptions[e] = buf.getInt();
+            }
+            byte[] packed = new byte[(int) (((long) n * width + 7) / 8)];
+            buf.get(packed);
+            for (int k = 0; k < n; k++) {
+                values[k] = (int) (base + unpack(packed, k, width));
+            }
+            for (int e = 0; e < numExceptions; e++) {
+                values[positions[e]] = exceptions[e];
+            }
+            frameBase[column] = base;
+            frameWidth[column] = width;
+            hasFrame[column] = true;
+        } else {
+            throw new IOException("bad column encoding on page " + pid);
+        }
+        return values;
+    }
+
+    private static long unpack(byte[] packed, int k, int width) {
+        long value = 0;
+        long bit = (long) k * width;
+        for (int b = 0; b < width; b++, bit++) {
+            value |= (long) ((packed[(int) (bit / 8)] >> (bit % 8)) & 1) << b;
+        }
+        return value;
+    }
+
+    private static void pack(byte[] packed, int k, int width, long value) {
+        long bit = (long) k * width;
+        for (int b = 0; b < width; b++, bit++) {
+            if (((value >> b) & 1) == 1) {
+                packed[(int) (bit / 8)] |= (byte) (1 << (bit % 8));
+            }
+        }
+    }
+
+    private void addToDictionary(int column, String s) {
+        Map<String, Integer> codes = dictionaryCodes.get(column);
+        if (!codes.containsKey(s)) {
+            codes.put(s, dictionaries.get(column).size());
+            dictionaries.get(column).add(s);
+        }
+    }
+
+    // 去掉字典里没人用的串，保持剩下的顺序
+    private void pruneDictionaries() {
+        for (int j = 0; j < td.numFields(); j++) {
+            List<String> dictionary = dictionaries.get(j);
+            if (dictionary == null) {
+                continue;
+            }
+            boolean[] inUse = new boolean[dictionary.size()];
+            Map<String, Integer> codes = dictionaryCodes.get(j);
+            for (Tuple t : tuples) {
+                if (t != null) {
+                    inUse[codes.get(((StringField) t.getField(j)).getValue())] = true;
+                }
+            }
+            List<String> kept = new ArrayList<>();
+            for (int k = 0; k < inUse.length; k++) {
+                if (inUse[k]) {
+                    kept.add(dictionary.get(k));
+                }
+            }
+            dictionary.clear();
+            codes.clear();
+            for (String s : kept) {
+                addToDictionary(j, s);
+            }
+        }
+    }
+
+    /**
+     * 按当前的tuple重新编码整页
+     *
+     * @throws BufferOverflowException if the page does not fit
+     */
+    private void encode() {
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        buf.putShort((short) numSlots);
+        byte[] bitmap = new byte[(numSlots + 7) / 8];
+        int used = 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (tuples[i] != null) {
+                bitmap[i / 8] |= (byte) (1 << (i % 8));
+                used++;
+            }
+        }
+        buf.put(bitmap);
+        int[] newBase = frameBase.clone();
+        int[] newWidth = frameWidth.clone();
+        boolean[] newHasFrame = hasFrame.clone();
+        for (int j = 0; j < td.numFields(); j++) {
+            List<String> dictionary = dictionaries.get(j);
+            if (dictionary != null) {
+                buf.putShort((short) dictionary.size());
+                for (String s : dictionary) {
+                    buf.putShort((short) s.length());
+                    buf.put(s.getBytes(StandardCharsets.ISO_8859_1));
+                }
+            }
+            int[] values = new int[used];
+            int k = 0;
+            for (Tuple t : tuples) {
+                if (t == null) {
+                    continue;
+                }
+                Field f = t.getField(j);
+                values[k++] = dictionary == null
+                        ? ((IntField) f).getValue()
+                        : dictionaryCodes.get(j).get(((StringField) f).getValue());
+            }
+            newHasFrame[j] = writeInts(buf, values, j, newBase, newWidth);
+        }
+        //编码成功后才更新状态，插入放不下时保持原样
+        System.arraycopy(newBase, 0, frameBase, 0, frameBase.length);
+        System.arraycopy(newWidth, 0, frameWidth, 0, frameWidth.length);
+        System.arraycopy(newHasFrame, 0, hasFrame, 0, hasFrame.length);
+        image = buf.array();
+        encodedSize = buf.position();
+    }
+
+    /**
+     * 用游程编码和FOR里更短的那种写一列，返回是否用了FOR（参数写进base/width）
+     */
+    private boolean writeInts(ByteBuffer buf, int[] values, int column, int[] base, int[] width) {
+        int n = values.length;
+        int runs = 0;
+        for (int k = 0; k < n; k++) {
+            if (k == 0 || values[k] != values[k - 1]) {
+                runs++;
+            }
+        }
+        long bestCost = 3 + 6L * runs;
+        int bestBase = 0;
+        int bestWidth = -1;
+
+        if (n > 0) {
+            // 以最小值为基准，统计每个值需要几位，算出每种位宽的长度
+            int min = Integer.MAX_VALUE;
+            for (int v : values) {
+                min = Math.min(min, v);
+            }
+            int[] bitsNeeded = new int[33];
+            for (int v : values) {
+                bitsNeeded[64 - Long.numberOfLeadingZeros((long) v - min)]++;
+            }
+            int exceptions = n;
+            for (int w = 0; w <= 32; w++) {
+                exceptions -= bitsNeeded[w];
+                long cost = forCost(n, w, exceptions);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestBase = min;
+                    bestWidth = w;
+                }
+            }
+        }
+        if (hasFrame[column]) {
+            int exceptions = 0;
+            for (int v : values) {
+                if (!fits(v, frameBase[column], frameWidth[column])) {
+                    exceptions++;
+                }
+            }
+            if (forCost(n, frameWidth[column], exceptions) <= bestCost) {
+                bestBase = frameBase[column];
+                bestWidth = frameWidth[column];
+            }
+        }
+
+        if (bestWidth < 0) {
+            buf.put(RLE);
+            buf.putShort((short) runs);
+            int start = 0;
+            for (int k = 1; k <= n; k++) {
+                if (k == n || values[k] != values[start]) {
+                    buf.putInt(values[start]);
+                    buf.putShort((short) (k - start));
+                    start = k;
+                }
+            }
+            return false;
+        }
+        buf.put(FOR);
+        buf.putInt(bestBase);
+        buf.put((byte) bestWidth);
+        byte[] packed = new byte[(int) (((long) n * bestWidth + 7) / 8)];
+        List<Integer> exceptions = new ArrayList<>();
+        for (int k = 0; k < n; k++) {
+            if (fits(values[k], bestBase, bestWidth)) {
+                pack(packed, k, bestWidth, (long) values[k] - bestBase);
+            } else {
+                exceptions.add(k);
+            }
+        }
+        buf.putShort((short) exceptions.size());
+        for (int k : exceptions) {
+            buf.putShort((short) k);
+            buf.putInt(values[k]);
+        }
+        buf.put(packed);
+        base[column] = bestBase;
+        width[column] = bestWidth;
+        return true;
+    }
+
+    private static boolean fits(int v, int base, int width) {
+        long d = (long) v - base;
+        return d >= 0 && d < (1L << width);
+    }
+
+    private static long forCost(int n, int width, int exceptions) {
+        return 8 + 6L * exceptions + ((long) n * width + 7) / 8;
+    }
+
+    /** Return a view of this page before it was modified
+     -- used by recovery */
+    public CompressedHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new CompressedHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        byte[] data = getPageData();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return image.clone();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes of the encoded page in use
+     */
+    public int getEncodedSize() {
+        latch.readLock().lock();
+        try {
+            return encodedSize;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the tuple in the specified slot.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        latch.readLock().lock();
+        try {
+            return slot < numSlots ? tuples[slot] : null;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (!t.getTupleDesc().equals(td)) {
+                throw new DbException("insert tuple err");
+            }
+            int slot = 0;
+            while (slot < numSlots && tuples[slot] != null) {
+                slot++;
+            }
+            if (slot == MAX_SLOTS) {
+                throw new DbException("page is full");
+            }
+            Tuple[] oldTuples = tuples;
+            int oldNumSlots = numSlots;
+            int[] oldDictionarySizes = new int[td.numFields()];
+            if (slot == numSlots) {
+                numSlots++;
+                tuples = Arrays.copyOf(tuples, numSlots);
+            } else {
+                tuples = tuples.clone();
+            }
+            tuples[slot] = t;
+            for (int j = 0; j < td.numFields(); j++) {
+                if (dictionaries.get(j) != null) {
+                    oldDictionarySizes[j] = dictionaries.get(j).size();
+                    addToDictionary(j, ((StringField) t.getField(j)).getValue());
+                }
+            }
+            try {
+                encode();
+            } catch (BufferOverflowException e) {
+                //放不下，恢复原状
+                tuples = oldTuples;
+                numSlots = oldNumSlots;
+                for (int j = 0; j < td.numFields(); j++) {
+                    List<String> dictionary = dictionaries.get(j);
+                    if (dictionary != null && dictionary.size() > oldDictionarySizes[j]) {
+                        dictionaryCodes.get(j).remove(dictionary.remove(oldDictionarySizes[j]));
+                    }
+                }
+                throw new DbException("page is full");
+            }
+            t.setRecordId(new RecordId(pid, slot));
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            int slot = t.getRecordId().getTupleNumber();
+            if (slot >= numSlots || !t.equals(tuples[slot])) {
+                throw new DbException("tuple is not in tuples");
+            }
+            List<List<String>> oldDictionaries = new ArrayList<>();
+            for (List<String> dictionary : dictionaries) {
+                oldDictionaries.add(dictionary == null ? null : new ArrayList<>(dictionary));
+            }
+            tuples = tuples.clone();
+            tuples[slot] = null;
+            //末尾的空slot直接去掉
+            while (numSlots > 0 && tuples[numSlots - 1] == null) {
+                numSlots--;
+            }
+            tuples = Arrays.copyOf(tuples, numSlots);
+            pruneDictionaries();
+            try {
+                encode();
+            } catch (BufferOverflowException e) {
+                //字典重新编号后编码可能反而变长，放不下就用原来的字典和编号重新编码；
+                //少一个值不会让游程变多，FOR也还能用原来的base和位宽，所以一定放得下
+                for (int j = 0; j < oldDictionaries.size(); j++) {
+                    if (oldDictionaries.get(j) != null) {
+                        dictionaries.get(j).clear();
+                        dictionaryCodes.get(j).clear();
+                        for (String s : oldDictionaries.get(j)) {
+                            addToDictionary(j, s);
+                        }
+                    }
+                }
+                encode();
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tuples that are sure to fit, whatever their
+     * values: each one takes at most a byte of the slot bitmap, and makes
+     * each column grow by at most {@value #MAX_COLUMN_GROWTH} bytes, plus a
+     * new dictionary entry for a string column.
+     */
+    public int getNumUnusedSlots() {
+        latch.readLock().lock();
+        try {
+            int perTuple = 1;
+            int used = 0;
+            for (int j = 0; j < td.numFields(); j++) {
+                perTuple += MAX_COLUMN_GROWTH;
+                if (dictionaries.get(j) != null) {
+                    perTuple += 2 + Type.STRING_LEN;
+                }
+            }
+            for (int i = 0; i < numSlots; i++) {
+                if (tuples[i] != null) {
+                    used++;
+                }
+            }
+            return Math.min((BufferPool.getPageSize() - encodedSize) / perTuple, MAX_SLOTS - used);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return getTuple(i) != null;
+    }
+
+    /**
+     * @return the number of slots of this page, used or not
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.transactionId = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? transactionId : null;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page; tuples deleted
+     *         meanwhile are skipped
+     */
+    public Iterator<Tuple> iterator() {
+        List<Integer> used = new ArrayList<>();
+        latch.readLock().lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (tuples[i] != null) {
+                    used.add(i);
+                }
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+        Iterator<Integer> slots = used.iterator();
+        return new Iterator<Tuple>() {
+            private Tuple next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && slots.hasNext()) {
+                    next = getTuple(slots.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
+    }
+}
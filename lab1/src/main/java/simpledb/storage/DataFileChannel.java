@@ -0,0 +1,127 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The open FileChannel of a data file, shared by every thread that reads or
+ * writes its pages.  Pages are read and written with positional I/O, which
+ * does not move a shared file pointer, so concurrent accesses to one file
+ * do not serialize and a page access costs a single system call.
+ * <p>
+ * The channel is opened on first use, creating the file if needed.  A
+ * thread interrupted in the middle of an I/O closes the channel for every
+ * thread; the others then reopen it and retry, the interrupted one gets
+ * the ClosedByInterruptException.
+ */
+public class DataFileChannel {
+
+    private final File file;
+    private FileChannel channel; // protected by this
+
+    public DataFileChannel(File file) {
+        this.file = file;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        }
+        return channel;
+    }
+
+    /**
+     * Read from the specified position of the file until dst is full or
+     * the end of the file is reached.
+     *
+     * @return the number of bytes read, or -1 if position is at or past
+     *         the end of the file
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n;
+            try {
+                n = channel().read(dst, position + total);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                continue; // closed by another thread's interrupt
+            }
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total == 0 && dst.hasRemaining() ? -1 : total;
+    }
+
+    /**
+     * Write all of src at the specified position of the file.
+     */
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            try {
+                position += channel().write(src, position);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread's interrupt
+            }
+        }
+    }
+
+    /**
+     * Map a region of the file into memory.  The mapping stays valid after
+     * the channel is closed, until it is garbage collected.
+     */
+    public MappedByteBuffer map(FileChannel.MapMode mode, long position, long size) throws IOException {
+        while (true) {
+            try {
+                return channel().map(mode, position, size);
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed by another thread's interrupt
+            }
+        }
+    }
+
+    /**
+     * Force the data written to the file to disk.
+     */
+    public void force() throws IOException {
+        channel().force(false);
+    }
+
+    /**
+     * Cut the file down to the specified size.
+     */
+    public synchronized void truncate(long size) throws IOException {
+        channel().truncate(size);
+    }
+
+    /**
+     * @return the current size of the file
+     */
+    public long size() throws IOException {
+        return channel().size();
+    }
+
+    /**
+     * Close the channel; it is reopened if the file is accessed again.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
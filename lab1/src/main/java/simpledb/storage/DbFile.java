@@ -2,11 +2,13 @@ package simpledb.storage;
 
 import simpledb.common.Catalog;
 import simpledb.common.DbException;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -31,6 +33,26 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Remove every page of this file, leaving it as it was when created.
+     * Used by recovery to reset unlogged tables.
+     *
+     * @throws IOException if the file cannot be truncated
+     */
+    default void truncate() throws IOException {
+        throw new UnsupportedOperationException("truncate not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Write to disk the metadata this file keeps in memory besides its pages,
+     * such as a free space map.  Called when the buffer pool is flushed and
+     * at checkpoints; does nothing by default.
+     *
+     * @throws IOException if the write fails
+     */
+    default void sync() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -71,6 +93,73 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the specified columns of all the tuples
+     * stored in this DbFile, as tuples with just those fields (see
+     * {@link TupleDesc#project}).  By default the tuples of
+     * {@link #iterator(TransactionId)} are projected; files that store
+     * columns apart can avoid reading the others.
+     *
+     * @param columns the indexes of the columns to return, in order
+     */
+    default DbFileIterator iterator(TransactionId tid, int[] columns) {
+        return iterator(tid, columns, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that pass
+     * the specified predicate, with just the specified columns.  By default
+     * the tuples of {@link #iterator(TransactionId)} are filtered and then
+     * projected; files that can check the predicate on the stored field
+     * avoid decoding the tuples that do not pass.
+     *
+     * @param columns the indexes of the columns to return, in order, or
+     *                null for all of them
+     * @param predicate the predicate, on the fields of the stored tuples,
+     *                  or null to return every tuple
+     */
+    default DbFileIterator iterator(TransactionId tid, int[] columns, Predicate predicate) {
+        TupleDesc projected = columns == null ? null : getTupleDesc().project(columns);
+        DbFileIterator it = iterator(tid);
+        return new DbFileIterator() {
+            private Tuple next;
+
+            public void open() throws DbException, TransactionAbortedException {
+                next = null;
+                it.open();
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                while (next == null && it.hasNext()) {
+                    Tuple t = it.next();
+                    if (predicate == null || predicate.filter(t)) {
+                        next = columns == null ? t : t.project(columns, projected);
+                    }
+                }
+                return next != null;
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                next = null;
+                it.rewind();
+            }
+
+            public void close() {
+                next = null;
+                it.close();
+            }
+        };
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
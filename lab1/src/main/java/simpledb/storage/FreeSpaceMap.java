@@ -0,0 +1,261 @@
+package simpledb.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The free space map of a heap file: one byte per page giving the number of
+ * free slots on the page, capped at {@link #MAX_FREE}, so that an insert can
+ * go straight to a page with room instead of visiting every page.
+ * <p>
+ * The map is only a hint.  It is not logged and is written to a sidecar
+ * file next to the heap file by {@link #save}, so after an abort or a crash
+ * it can be wrong either way: the caller must check the free slots of the
+ * page it gets and {@link #update} the map when they differ.  Pages the map
+ * knows nothing about, such as pages added to the file by recovery, are
+ * {@link #UNKNOWN} and count as having room.
+ * <p>
+ * The sidecar file also keeps the used limit of the heap file, see
+ * {@link #setUsedLimit}, which unlike the map is forced to disk when it
+ * changes.
+ */
+public class FreeSpaceMap {
+
+    /** Most free slots recorded for a page */
+    public static final int MAX_FREE = 254;
+    /** Recorded for a page whose free slots are not known */
+    public static final int UNKNOWN = 255;
+
+    private static final int MAGIC = 0x46534d32; // "FSM2"
+    // the format without a used limit
+    private static final int MAGIC_V1 = 0x46534d31; // "FSM1"
+    // where the used limit is in the sidecar file
+    private static final int USED_LIMIT_OFFSET = 4;
+
+    private final File file;
+    private byte[] free = new byte[0];
+    private int numPages;
+    // pages whose entry is not 0
+    private final BitSet withRoom = new BitSet();
+    private boolean dirty;
+    private int usedLimit = -1;
+    private long usedLimitLength = -1;
+    // whether the sidecar file is in the current format, so the used limit
+    // can be written in place
+    private boolean onDisk;
+
+    /**
+     * Create the free space map stored in the specified sidecar file,
+     * loading it if the file exists.  A missing or unreadable file gives an
+     * empty map, in which every page is unknown.
+     */
+    public FreeSpaceMap(File file) {
+        this.file = file;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                e.printStackTrace();
+                free = new byte[0];
+                numPages = 0;
+                withRoom.clear();
+                usedLimit = -1;
+                usedLimitLength = -1;
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("bad free space map " + file);
+            }
+            int limit = -1;
+            long limitLength = -1;
+            if (magic == MAGIC) {
+                limit = in.readInt();
+                limitLength = in.readLong();
+            }
+            int n = in.readInt();
+            byte[] entries = new byte[n];
+            in.readFully(entries);
+            free = entries;
+            numPages = n;
+            usedLimit = limit;
+            usedLimitLength = limitLength;
+            onDisk = magic == MAGIC;
+            for (int i = 0; i < n; i++) {
+                if (entries[i] != 0) {
+                    withRoom.set(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the map to its sidecar file if it changed since it was last
+     * written.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        write(false);
+    }
+
+    private void write(boolean force) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(usedLimit);
+            out.writeLong(usedLimitLength);
+            out.writeInt(numPages);
+            out.write(free, 0, numPages);
+            out.flush();
+            if (force) {
+                fos.getFD().sync();
+            }
+        }
+        dirty = false;
+        onDisk = true;
+    }
+
+    /**
+     * Record that no page of the heap file from pages on is in use while
+     * the heap file is fileLength bytes long, so that opening it only has
+     * to look for its last used page below pages.  The limit is written to
+     * the sidecar file and forced before returning, so it must be raised
+     * before a page at or past it is used.  A limit of -1 records none.
+     *
+     * @param pages the number of pages that may be in use
+     * @param fileLength the length of the heap file the limit holds for
+     */
+    public synchronized void setUsedLimit(int pages, long fileLength) throws IOException {
+        if (pages == usedLimit && fileLength == usedLimitLength) {
+            return;
+        }
+        usedLimit = pages;
+        usedLimitLength = fileLength;
+        if (!onDisk) {
+            write(true);
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(USED_LIMIT_OFFSET);
+            raf.writeInt(pages);
+            raf.writeLong(fileLength);
+            raf.getFD().sync();
+        }
+    }
+
+    /**
+     * @return the used limit recorded by {@link #setUsedLimit} for a heap
+     *         file of the specified length, or -1 if none is recorded for
+     *         that length
+     */
+    public synchronized int getUsedLimit(long fileLength) {
+        return fileLength == usedLimitLength ? usedLimit : -1;
+    }
+
+    /**
+     * Make the map cover the first numPages pages of the file; pages it did
+     * not cover yet are unknown.
+     */
+    public synchronized void extendTo(int numPages) {
+        if (numPages <= this.numPages) {
+            return;
+        }
+        if (numPages > free.length) {
+            free = Arrays.copyOf(free, Math.max(numPages, free.length * 2));
+        }
+        Arrays.fill(free, this.numPages, numPages, (byte) UNKNOWN);
+        withRoom.set(this.numPages, numPages);
+        this.numPages = numPages;
+        dirty = true;
+    }
+
+    /**
+     * Record the number of free slots of a page, extending the map to it if
+     * needed.
+     */
+    public synchronized void update(int pageNo, int freeSlots) {
+        extendTo(pageNo + 1);
+        byte entry = (byte) Math.min(freeSlots, MAX_FREE);
+        if (free[pageNo] != entry) {
+            free[pageNo] = entry;
+            withRoom.set(pageNo, entry != 0);
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return the recorded free slots of a page, {@link #UNKNOWN} if the map
+     *         does not cover it
+     */
+    public synchronized int getFree(int pageNo) {
+        return pageNo < numPages ? free[pageNo] & 0xff : UNKNOWN;
+    }
+
+    /**
+     * @return the first page from fromPage on that may have a free slot, or
+     *         -1 if the map records none
+     */
+    public synchronized int nextPageWithRoom(int fromPage) {
+        int p = withRoom.nextSetBit(fromPage);
+        return p < numPages ? p : -1;
+    }
+
+    /**
+     * @return the number of pages covered by the map
+     */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /**
+     * Forget the pages from numPages on, as when they are cut off the end
+     * of the heap file.
+     */
+    public synchronized void truncateTo(int numPages) {
+        if (numPages >= this.numPages) {
+            return;
+        }
+        withRoom.clear(numPages, this.numPages);
+        this.numPages = numPages;
+        dirty = true;
+    }
+
+    /**
+     * Make every page recorded as full unknown, as after a crash: the map
+     * was saved at some point before it, and the slots that recovery frees
+     * since then are not in it.  Inserts check the pages again.
+     */
+    public synchronized void forgetFull() {
+        for (int i = 0; i < numPages; i++) {
+            if (free[i] == 0) {
+                free[i] = (byte) UNKNOWN;
+                dirty = true;
+            }
+        }
+        withRoom.set(0, numPages);
+    }
+
+    /**
+     * Forget every page, as when the heap file is truncated.
+     */
+    public synchronized void clear() {
+        numPages = 0;
+        withRoom.clear();
+        dirty = true;
+    }
+}
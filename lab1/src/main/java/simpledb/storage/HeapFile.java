@@ -4,14 +4,21 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
+import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -24,10 +31,37 @@ import java.util.NoSuchElementException;
  * @see HeapPage#HeapPage
  */
 public class HeapFile implements DbFile {
+    /** Number of new pages {@link #bulkLoad} logs one EXTENT record for */
+    public static final int BULK_EXTENT_PAGES = 64;
+    /** Most bytes of a file {@link #setMemoryMapped mapped} into memory */
+    public static final long MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+    /** Most bytes the file grows by at a time unless {@link #setExtentSize} is called */
+    public static final int DEFAULT_EXTENT_SIZE = 1 << 20;
+    //没设extentSize时，每次预分配文件当前长度的1/EXTENT_FRACTION
+    private static final int EXTENT_FRACTION = 8;
+    //.fsm里记的可能用到的页数比高水位多这么多页，不用每加一页都写一次
+    private static final int USED_LIMIT_MARGIN = 16;
+
     private File file;
     private TupleDesc tupleDesc;
-
-
+    //一直打开的FileChannel，用positional read/write，不用每次访问都打开文件
+    private final DataFileChannel channel;
+    //开启mmap后readPage直接从映射区解析页；文件变长时重新映射，映射不到的页照常read
+    private volatile boolean memoryMapped;
+    private MappedByteBuffer mappedPages; // protected by mapLock
+    private final ReadWriteLock mapLock = new ReentrantReadWriteLock();
+    //空闲空间表，插入时直接找有空位的页，存在数据文件旁边的.fsm文件里
+    private final FreeSpaceMap freeSpace;
+    //页的种类（PageRegistry里的类型号），决定元组在页里怎么存放
+    private final int pageType;
+    //文件末尾加页和vacuum截断文件用这个锁互斥
+    private final Object extendLock = new Object();
+    //高水位：用到的页数，文件在它之后是预分配的全0空间；-1表示还没算过
+    private volatile int highWater = -1;
+    //上次算高水位时或者自己改文件长度后的文件长度，长度变了说明文件被别人改过
+    private volatile long knownLength = -1;
+    //0表示按文件大小预分配
+    private volatile int extentSize;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -38,8 +72,48 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File f, TupleDesc td) {
         // some code goes here
+        this(f, td, PageRegistry.HEAP_PAGE);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * of the specified kind: {@link PageRegistry#HEAP_PAGE} for the fixed
+     * size slots of {@link HeapPage}, or {@link PageRegistry#VARLEN_HEAP_PAGE}
+     * for the variable-length records of {@link VarLenHeapPage},
+     * {@link PageRegistry#COMPRESSED_HEAP_PAGE} for the compressed columns
+     * of {@link CompressedHeapPage}, or {@link PageRegistry#PAX_PAGE} for
+     * the column-wise {@link PaxPage} (see {@link PaxFile}).  The kind of
+     * page is not recorded in the file, it must be the same every time the
+     * file is opened.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     * @param pageType the registered type id of its pages, a kind of
+     *                 {@link HeapFilePage}
+     */
+    public HeapFile(File f, TupleDesc td, int pageType) {
         file  =f;
         tupleDesc = td;
+        this.pageType = pageType;
+        channel = new DataFileChannel(f);
+        freeSpace = new FreeSpaceMap(new File(f.getPath() + ".fsm"));
+    }
+
+    /**
+     * Returns the type id, in {@link PageRegistry}, of the pages of this file.
+     */
+    public int getPageType() {
+        return pageType;
+    }
+
+    // 按这个文件的页类型创建页
+    private HeapFilePage createPage(HeapPageId pid, byte[] data) throws IOException {
+        return (HeapFilePage) PageRegistry.createPage(pageType, pid, data);
+    }
+
+    // 只有HeapPage直接读映射区，其他页还是复制一份
+    private HeapFilePage createPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        return (HeapFilePage) PageRegistry.createPage(pageType, pid, data);
     }
 
     /**
@@ -76,32 +150,142 @@ public class HeapFile implements DbFile {
         return tupleDesc;
     }
 
+    /**
+     * Returns the free space map this file uses to pick the page an inserted
+     * tuple goes to.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    // see DbFile.java for javadocs
+    public void sync() throws IOException {
+        freeSpace.save();
+    }
+
+    /**
+     * Serve {@link #readPage} from a read-only memory mapping of the file
+     * instead of reading each page into a byte array.  Pages are parsed
+     * straight from the mapped memory, which saves a system call and a copy
+     * per buffer pool miss; this pays off for read-mostly tables that fit
+     * in the OS page cache.
+     * <p>
+     * A {@link HeapPage} keeps reading the mapped memory until it is first
+     * modified.  The other kinds of heap pages copy their image when they
+     * are built, see {@link PageRegistry#createPage(int, PageId, ByteBuffer)},
+     * so for them the mapping only saves the system call.
+     * <p>
+     * Pages are still written through the file channel, which relies on
+     * the OS keeping the mapping coherent with writes to the file, as
+     * Linux, macOS and Windows do.  When the file grows, the mapping is
+     * extended on the first read past its end; pages beyond
+     * {@link #MAX_MAPPED_BYTES} are read as usual.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        mapLock.writeLock().lock();
+        try {
+            this.memoryMapped = memoryMapped;
+            mappedPages = null;
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether page reads are served from a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Set the number of bytes the file grows by when it runs out of pages.
+     * The new space is filled with zeroes, i.e. with empty pages, in one go,
+     * so that adding a page does not change the length of the file every
+     * time.  The pages beyond {@link #numPages} are not part of the file
+     * until they are used.  The size is rounded up to whole pages; a size
+     * of at most one page grows the file one page at a time.
+     * <p>
+     * By default, or after setting a size of 0, the file grows by an eighth
+     * of its length, rounded down to whole pages and at most
+     * {@link #DEFAULT_EXTENT_SIZE}, so a small table grows a page at a time.
+     */
+    public void setExtentSize(int bytes) {
+        extentSize = bytes;
+    }
+
+    /**
+     * @return the number of bytes the file grows by at a time, 0 if it
+     *         grows in proportion to its length
+     */
+    public int getExtentSize() {
+        return extentSize;
+    }
+
     /*
     以下有些方法并不会直接调用，而是通过BufferPool调用
      */
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        HeapPage heapPage = null;
+        HeapFilePage heapPage = null;
         int pageSize = BufferPool.getPageSize();
         byte[] buf = new byte[pageSize];
 
         try {
-            RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "r");
-            randomAccessFile.seek((long)pid.getPageNumber()*pageSize);
-            if(randomAccessFile.read(buf)==-1){
+            if (memoryMapped) {
+                heapPage = readMappedPage((HeapPageId) pid, (long) pid.getPageNumber() * pageSize, pageSize);
+                if (heapPage != null) {
+                    return heapPage;
+                }
+            }
+            if(channel.read(ByteBuffer.wrap(buf), (long)pid.getPageNumber()*pageSize)==-1){
                 return null;
             }
-            heapPage= new HeapPage((HeapPageId) pid, buf);
-            randomAccessFile.close();
-        } catch (FileNotFoundException e ) {
-            e.printStackTrace();
+            heapPage= createPage((HeapPageId) pid, buf);
         } catch (IOException e){
             e.printStackTrace();
         }
         return heapPage;
     }
 
+    // 从映射区解析页，页不在映射区内时先把映射扩展到文件当前长度；仍然映射不到（超出文件末尾或映射上限）返回null
+    private HeapFilePage readMappedPage(HeapPageId pid, long offset, int pageSize) throws IOException {
+        mapLock.readLock().lock();
+        try {
+            if (mappedPages != null && offset + pageSize <= mappedPages.capacity()) {
+                return createPage(pid, slice(mappedPages, offset, pageSize));
+            }
+        } finally {
+            mapLock.readLock().unlock();
+        }
+        mapLock.writeLock().lock();
+        try {
+            if (!memoryMapped) {
+                return null;
+            }
+            if (mappedPages == null || offset + pageSize > mappedPages.capacity()) {
+                long size = Math.min(channel.size(), MAX_MAPPED_BYTES);
+                size -= size % pageSize;
+                if (offset + pageSize > size) {
+                    return null;
+                }
+                //旧的映射没法显式unmap，等GC回收
+                mappedPages = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return createPage(pid, slice(mappedPages, offset, pageSize));
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, long offset, int length) {
+        ByteBuffer page = buf.duplicate();
+        page.position((int) offset);
+        page.limit((int) offset + length);
+        return page.slice();
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -110,18 +294,253 @@ public class HeapFile implements DbFile {
         int size = BufferPool.getPageSize();
         int pageNumber = heapPageId.getPageNumber();
         byte[] pageData = page.getPageData();
-        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-        randomAccessFile.seek(pageNumber* size);
-        randomAccessFile.write(pageData);
-        randomAccessFile.close();
+        if (pageNumber >= usedPages()) {
+            //写到高水位之后（批量加载、恢复），高水位跟着提高；先提高.fsm里记的页数再写页
+            synchronized (extendLock) {
+                int pages = Math.max(usedPages(), pageNumber + 1);
+                setHighWater(pages);
+                channel.write(ByteBuffer.wrap(pageData), (long) pageNumber * size);
+                setHighWater(pages);
+            }
+            return;
+        }
+        channel.write(ByteBuffer.wrap(pageData), (long) pageNumber * size);
+    }
+
+    // 文件不够numPages页时，按extent一次写0补足
+    private void allocate(int numPages) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        long needed = (long) numPages * pageSize;
+        long size = channel.size();
+        if (size >= needed) {
+            return;
+        }
+        long extentPages;
+        if (extentSize > 0) {
+            extentPages = Math.max(1, (extentSize + pageSize - 1) / pageSize);
+        } else {
+            extentPages = Math.max(1, Math.min(size / pageSize / EXTENT_FRACTION, DEFAULT_EXTENT_SIZE / pageSize));
+        }
+        long extent = extentPages * pageSize;
+        long end = (needed + extent - 1) / extent * extent;
+        ByteBuffer zeroes = ByteBuffer.allocate((int) Math.min(end - size, 1 << 16));
+        for (long pos = size; pos < end; pos += zeroes.capacity()) {
+            zeroes.clear();
+            zeroes.limit((int) Math.min(zeroes.capacity(), end - pos));
+            channel.write(zeroes, pos);
+        }
+    }
+
+    // 在高水位处加一个空页（全0），由调用者经BufferPool加锁使用
+    private void extend() throws IOException {
+        synchronized (extendLock) {
+            int pageNo = usedPages();
+            allocate(pageNo + 1);
+            setHighWater(pageNo + 1);
+            freeSpace.update(pageNo, FreeSpaceMap.MAX_FREE);
+        }
+    }
+
+    /**
+     * 调用时持有extendLock。设置高水位，并在文件末尾有预分配空间时往.fsm里记一个
+     * 不小于高水位的页数（used limit），打开文件时只需从它往前找最后用到的页。
+     * 记录带着文件长度，长度对不上的不用；高水位超过记的页数之前先写好新的记录，
+     * 所以崩溃后记录仍然不小于用到的页数。没有预分配空间时清掉记录
+     */
+    private void setHighWater(int pages) throws IOException {
+        long length = file.length();
+        int lengthPages = (int) (length / BufferPool.getPageSize());
+        if (lengthPages > pages) {
+            if (pages > freeSpace.getUsedLimit(length)) {
+                freeSpace.setUsedLimit(Math.min(lengthPages, pages + USED_LIMIT_MARGIN), length);
+            }
+        } else {
+            freeSpace.setUsedLimit(-1, -1);
+        }
+        highWater = pages;
+        knownLength = length;
+    }
+
+    // 插入、扫描等热路径用的页数：高水位已知时直接用，不每次查文件长度；
+    // 文件被别人改过要等下次numPages()才知道
+    private int usedPages() {
+        int pages = highWater;
+        return pages >= 0 ? pages : numPages();
+    }
+
+    // see DbFile.java for javadocs
+    public void truncate() throws IOException {
+        //和新建的表一样，只留一个空页（全0），否则扫描会找不到第0页
+        //截断前先丢掉映射，访问文件末尾之后的映射区会崩溃
+        mapLock.writeLock().lock();
+        try {
+            mappedPages = null;
+            channel.truncate(0);
+        } finally {
+            mapLock.writeLock().unlock();
+        }
+        freeSpace.clear();
+        synchronized (extendLock) {
+            channel.write(ByteBuffer.wrap(HeapPage.createEmptyPageData()), 0);
+            setHighWater(1);
+        }
+    }
+
+    /**
+     * Bulk load tuples into this file on behalf of transaction tid.  The
+     * tuples are packed into new pages appended to the file, which are
+     * written straight to disk without going through the buffer pool.
+     * Instead of page images the log only gets an EXTENT record for every
+     * {@link #BULK_EXTENT_PAGES} new pages, forced before they are written,
+     * which is enough to roll the load back.  The file is forced before
+     * returning, so that the load is durable once tid commits.  Nothing is
+     * logged or forced for an unlogged table.
+     * <p>
+     * The pages of an extent are reserved at the end of the file and
+     * write-locked for tid before they are filled, and the free space map
+     * records them as full, so no other transaction puts tuples on a page
+     * that an abort of tid empties.  Reserved pages the load doesn't need
+     * are released for inserts when it returns.
+     *
+     * @param tid the transaction loading the tuples
+     * @param tuples the tuples to load
+     * @return the number of tuples loaded
+     */
+    public int bulkLoad(TransactionId tid, Iterator<Tuple> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        boolean logged = !Database.getCatalog().isUnlogged(getId());
+        int count = 0;
+        int nextPage = 0;
+        int endPage = 0;
+        List<HeapFilePage> extent = new ArrayList<>();
+        HeapFilePage page = null;
+        try {
+            while (tuples.hasNext()) {
+                if (page == null || page.getNumUnusedSlots() == 0) {
+                    if (nextPage == endPage) {
+                        if (!extent.isEmpty()) {
+                            writeExtent(tid, extent, logged);
+                            extent.clear();
+                        }
+                        nextPage = reserveExtent(tid);
+                        endPage = nextPage + BULK_EXTENT_PAGES;
+                    }
+                    page = createPage(new HeapPageId(getId(), nextPage++), HeapPage.createEmptyPageData());
+                    extent.add(page);
+                }
+                page.insertTuple(tuples.next());
+                count++;
+            }
+            if (!extent.isEmpty()) {
+                writeExtent(tid, extent, logged);
+            }
+        } finally {
+            //没用到的预留页一直是空的，放开给普通插入用
+            for (int pageNo = nextPage; pageNo < endPage; pageNo++) {
+                Database.getBufferPool().unsafeReleasePage(tid, new HeapPageId(getId(), pageNo));
+                freeSpace.update(pageNo, FreeSpaceMap.MAX_FREE);
+            }
+        }
+        if (logged) {
+            channel.force();
+        }
+        return count;
+    }
+
+    // 在高水位处预留一个extent的空页并加写锁，返回第一页的页号。
+    // 空闲空间表先记为满，在提高高水位之前，别的插入不会找到这些页
+    private int reserveExtent(TransactionId tid) throws IOException, TransactionAbortedException {
+        int first;
+        synchronized (extendLock) {
+            first = usedPages();
+            allocate(first + BULK_EXTENT_PAGES);
+            for (int pageNo = first; pageNo < first + BULK_EXTENT_PAGES; pageNo++) {
+                freeSpace.update(pageNo, 0);
+            }
+            setHighWater(first + BULK_EXTENT_PAGES);
+        }
+        //不能拿着extendLock等锁
+        for (int pageNo = first; pageNo < first + BULK_EXTENT_PAGES; pageNo++) {
+            Database.getBufferPool().lockPage(tid, new HeapPageId(getId(), pageNo), Permissions.READ_WRITE);
+        }
+        return first;
+    }
+
+    // 先把EXTENT记录写进日志并force，再写页，这样崩溃后总能把这些页清空
+    private void writeExtent(TransactionId tid, List<HeapFilePage> pages, boolean logged) throws IOException {
+        if (logged) {
+            Database.getLogFile().logExtent(tid, pages.get(0).getId(), pages.size());
+        }
+        for (HeapFilePage page : pages) {
+            writePage(page);
+            //扫描可能在加锁之前把预留的空页读进了pool
+            Database.getBufferPool().removePage(page.getId());
+        }
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile, its high-water mark:
+     * the space the file has been extended by ahead of use (see
+     * {@link #setExtentSize}) does not count.  When the file is opened, the
+     * empty pages at its end are taken for such space, except for page 0;
+     * they are only read up to the used limit kept in the free space map,
+     * see {@link FreeSpaceMap#setUsedLimit}.  Pages appended to the file by
+     * other means count as used.  Inserts and scans use the known mark
+     * without looking at the length of the file, so they only see such
+     * pages after this method is called.
      */
     public int numPages() {
         // some code goes here
-        return (int)file.length()/BufferPool.getPageSize();
+        int pages = highWater;
+        if (pages < 0 || file.length() != knownLength) {
+            synchronized (extendLock) {
+                long length = file.length();
+                int lengthPages = (int) (length / BufferPool.getPageSize());
+                if (highWater < 0) {
+                    highWater = findHighWater(length);
+                    knownLength = length;
+                } else if (length != knownLength) {
+                    try {
+                        setHighWater(length > knownLength ? Math.max(highWater, lengthPages)
+                                : Math.min(highWater, lengthPages));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        highWater = Math.min(highWater, lengthPages);
+                        knownLength = length;
+                    }
+                }
+                pages = highWater;
+            }
+        }
+        return pages;
+    }
+
+    // 从文件末尾往前找最后一个不全为0的页；全0的页是空页，去掉不影响内容。
+    // .fsm里记了这个长度下的used limit时，从它开始找
+    private int findHighWater(long length) {
+        int pageSize = BufferPool.getPageSize();
+        int pages = (int) (length / pageSize);
+        int limit = freeSpace.getUsedLimit(length);
+        if (limit >= 0) {
+            pages = Math.min(pages, limit);
+        }
+        byte[] buf = new byte[pageSize];
+        try {
+            for (int pageNo = pages - 1; pageNo > 0; pageNo--) {
+                if (channel.read(ByteBuffer.wrap(buf), (long) pageNo * pageSize) == -1) {
+                    continue;
+                }
+                for (byte b : buf) {
+                    if (b != 0) {
+                        return pageNo + 1;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return pages;
+        }
+        return Math.min(pages, 1);
     }
 
     // see DbFile.java for javadocs
@@ -132,43 +551,164 @@ public class HeapFile implements DbFile {
             throw new IOException();
         }
         List<Page> res = new ArrayList<>();
-        for(int i=0;i<numPages();i++){
-            HeapPageId heapPageId = new HeapPageId(getId(),i);
-            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_ONLY);
-            if(heapPage==null){
-                Database.getBufferPool().unsafeReleasePage(tid,heapPageId);
-                continue;
-            }
-            if(heapPage.getNumUnusedSlots()==0){
-                Database.getBufferPool().unsafeReleasePage(tid,heapPageId);
-                continue;
-            }
-            heapPage.insertTuple(t);
-            heapPage.markDirty(true,tid);
-            res.add(heapPage);
-            return res;
-        }
-        //新建一个page
-        HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-        HeapPage heapPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
+        HeapFilePage heapPage = lockPageWithRoom(tid, usedPages());
+        //没有空位就在高水位处加一页，和其它页一样经BufferPool加锁后插入；新页可能被别的事务抢先用满，再加
+        while(heapPage==null){
+            extend();
+            heapPage = lockPageWithRoom(tid, usedPages());
+        }
         heapPage.insertTuple(t);
-        writePage(heapPage);
+        heapPage.markDirty(true,tid);
+        freeSpace.update(heapPage.getId().getPageNumber(),heapPage.getNumUnusedSlots());
         res.add(heapPage);
         return res;
         // not necessary for lab1
     }
 
+    /**
+     * 按空闲空间表找limit之前有空位的页，拿到写锁后返回；表记错了就改正，接着往后找。
+     * 别的事务锁着的页不等，直接跳过：表里的空位可能是它还没提交的删除留下的。
+     * 没有这样的页返回null
+     */
+    private HeapFilePage lockPageWithRoom(TransactionId tid, int limit)
+            throws DbException {
+        BufferPool bufferPool = Database.getBufferPool();
+        freeSpace.extendTo(usedPages());
+        int pageNo = freeSpace.nextPageWithRoom(0);
+        while(pageNo>=0 && pageNo<limit){
+            HeapPageId heapPageId = new HeapPageId(getId(),pageNo);
+            boolean held = bufferPool.holdsLock(tid,heapPageId);
+            HeapFilePage heapPage = (HeapFilePage) bufferPool.tryGetPage(tid,heapPageId,Permissions.READ_WRITE);
+            if(heapPage!=null && heapPage.getNumUnusedSlots()>0){
+                return heapPage;
+            }
+            if(heapPage!=null){
+                freeSpace.update(pageNo,0);
+            }
+            //之前就持有的锁不能放，否则破坏两阶段锁
+            if(!held){
+                bufferPool.unsafeReleasePage(tid,heapPageId);
+            }
+            pageNo = freeSpace.nextPageWithRoom(pageNo+1);
+        }
+        return null;
+    }
+
+    /**
+     * Compact this file while it is in use: move the tuples of the last
+     * pages to free slots of earlier pages, then cut the pages left empty
+     * off the end of the file, so that scans no longer read them.
+     * <p>
+     * The tuples of each page are moved by a transaction of their own,
+     * holding write locks on that page and the pages they go to, and get
+     * new RecordIds; heap files have no secondary indexes, so nothing else
+     * refers to them.  The empty pages are then cut off by a transaction
+     * holding write locks on them.  A lock timeout aborts the transaction
+     * at hand, which leaves its pages as they were, and is thrown.
+     * <p>
+     * Cutting off the pages is not logged.  Recovery may replay records of
+     * pages that are gone; it rebuilds them as empty pages, so the file can
+     * get its empty tail back after a crash.
+     *
+     * @return the number of pages removed from the file
+     */
+    public int vacuum() throws DbException, IOException, TransactionAbortedException {
+        //从最后一页开始往前搬，前面没有空位了就停
+        boolean full = false;
+        for (int last = numPages() - 1; last > 0 && !full; last--) {
+            Transaction t = new Transaction();
+            t.start();
+            boolean done = false;
+            try {
+                full = moveTuplesDown(t.getId(), last);
+                done = true;
+            } finally {
+                t.transactionComplete(!done);
+            }
+        }
+        Transaction t = new Transaction();
+        t.start();
+        boolean done = false;
+        try {
+            int removed = cutEmptyPages(t.getId());
+            done = true;
+            return removed;
+        } finally {
+            t.transactionComplete(!done);
+        }
+    }
+
+    // 把第last页的tuple搬到前面有空位的页；前面放不下时返回true
+    private boolean moveTuplesDown(TransactionId tid, int last)
+            throws DbException, TransactionAbortedException {
+        HeapFilePage source = (HeapFilePage) Database.getBufferPool().getPage(
+                tid, new HeapPageId(getId(), last), Permissions.READ_WRITE);
+        if (source == null) {
+            return false;
+        }
+        List<Tuple> moving = new ArrayList<>();
+        source.iterator().forEachRemaining(moving::add);
+        for (Tuple t : moving) {
+            HeapFilePage target = lockPageWithRoom(tid, last);
+            if (target == null) {
+                return true;
+            }
+            source.deleteTuple(t);
+            source.markDirty(true, tid);
+            target.insertTuple(t);
+            target.markDirty(true, tid);
+            freeSpace.update(target.getId().getPageNumber(), target.getNumUnusedSlots());
+            freeSpace.update(last, source.getNumUnusedSlots());
+        }
+        return false;
+    }
+
+    // 锁住末尾的空页，然后截掉；第0页总是保留
+    private int cutEmptyPages(TransactionId tid) throws IOException, DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        int numPages = numPages();
+        int keep = numPages;
+        while (keep > 1) {
+            HeapFilePage page = (HeapFilePage) bufferPool.getPage(
+                    tid, new HeapPageId(getId(), keep - 1), Permissions.READ_WRITE);
+            if (page != null && page.iterator().hasNext()) {
+                break;
+            }
+            keep--;
+        }
+        synchronized (extendLock) {
+            //锁页的时候文件又变长了，新页没有锁住，这次不截
+            if (keep == numPages || numPages() != numPages) {
+                return 0;
+            }
+            for (int pageNo = keep; pageNo < numPages; pageNo++) {
+                bufferPool.removePage(new HeapPageId(getId(), pageNo));
+            }
+            mapLock.writeLock().lock();
+            try {
+                mappedPages = null;
+                channel.truncate((long) keep * BufferPool.getPageSize());
+            } finally {
+                mapLock.writeLock().unlock();
+            }
+            freeSpace.truncateTo(keep);
+            setHighWater(keep);
+        }
+        return numPages - keep;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         ArrayList<Page> res = new ArrayList<>();
         HeapPageId heapPageId  = (HeapPageId) t.getRecordId().getPageId();
-        HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
+        HeapFilePage heapPage = (HeapFilePage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
         if(heapPage==null){
             throw  new DbException("null");
         }
         heapPage.deleteTuple(t);
+        freeSpace.update(heapPageId.getPageNumber(),heapPage.getNumUnusedSlots());
         res.add(heapPage);
         return res;
         // not necessary for lab1
@@ -180,6 +720,19 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid,Permissions.READ_ONLY);
     }
 
+    // see DbFile.java for javadocs
+    @Override
+    public DbFileIterator iterator(TransactionId tid, int[] columns, Predicate predicate) {
+        TupleDesc projected = columns == null ? null : getTupleDesc().project(columns);
+        return new HeapFileIterator(tid, Permissions.READ_ONLY) {
+            @Override
+            protected Iterator<Tuple> pageIterator(HeapFilePage page) {
+                //页内先检查谓词，只解码需要的列
+                return page.iterator(columns, projected, predicate);
+            }
+        };
+    }
+
     /**
      * 这个迭代器的作用是用来遍历所有的tuple，但是不要将所有tuple一次性放入内存，而是一页一页的读和遍历
      */
@@ -195,6 +748,13 @@ public class HeapFile implements DbFile {
             this.permissions = permissions;
         }
 
+        /**
+         * 一页里的tuple怎么遍历，子类可以换成只读部分列的迭代器
+         */
+        protected Iterator<Tuple> pageIterator(HeapFilePage page) {
+            return page.iterator();
+        }
+
         /**
          * 开始进行遍历，默认从第一页开始
          * @throws DbException
@@ -202,13 +762,15 @@ public class HeapFile implements DbFile {
          */
         @Override
         public void open() throws DbException, TransactionAbortedException {
+            //打开时按文件长度更新一次高水位，翻页时不再查
+            numPages();
             num = 0;
             HeapPageId heapPageId = new HeapPageId(getId(), num);
-            HeapPage page = (HeapPage)this.bufferPool.getPage(tid, heapPageId, permissions);
+            HeapFilePage page = (HeapFilePage)this.bufferPool.getPage(tid, heapPageId, permissions);
             if(page==null){
                 throw  new DbException("page null");
             }else{
-                iterator = page.iterator();
+                iterator = pageIterator(page);
             }
         }
 
@@ -221,15 +783,15 @@ public class HeapFile implements DbFile {
         public boolean nextPage() throws DbException, TransactionAbortedException {
             while(true){
                 num++;
-                if(num>=numPages()){
+                if(num>=usedPages()){
                     return false;
                 }
                 HeapPageId heapPageId = new HeapPageId(getId(), num);
-                HeapPage page = (HeapPage)bufferPool.getPage(tid,heapPageId,permissions);
+                HeapFilePage page = (HeapFilePage)bufferPool.getPage(tid,heapPageId,permissions);
                 if(page==null){
                     continue;
                 }
-                iterator = page.iterator();
+                iterator = pageIterator(page);
                 if(iterator.hasNext()){
                     return true;
                 }
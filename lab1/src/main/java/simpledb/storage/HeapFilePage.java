@@ -0,0 +1,73 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A page of a {@link HeapFile}.  A heap file only adds, removes and scans
+ * the tuples of its pages, so how the tuples are laid out in the page image
+ * is up to the kind of page, which each heap file chooses when it is
+ * created (see {@link HeapFile#HeapFile(java.io.File, TupleDesc, int)}).
+ * <p>
+ * A page image of all zeroes must be an empty page.
+ */
+public interface HeapFilePage extends Page {
+
+    HeapPageId getId();
+
+    /**
+     * Adds the specified tuple to the page and sets its RecordId.
+     *
+     * @throws DbException if the tuple does not fit or its TupleDesc does
+     *         not match the page
+     */
+    void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     *
+     * @throws DbException if the tuple is not on this page
+     */
+    void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * Returns the number of empty slots on this page.  For pages of tuples
+     * of varying size, this is the number of tuples of the largest possible
+     * size that still fit, so that a page with a free slot can always take
+     * one more tuple.
+     */
+    int getNumUnusedSlots();
+
+    /**
+     * @return an iterator over the tuples on this page
+     */
+    Iterator<Tuple> iterator();
+
+    /**
+     * Returns an iterator over the tuples on this page that pass the
+     * specified predicate, with just the specified columns.  By default the
+     * tuples of {@link #iterator()} are filtered and projected; pages that
+     * decode tuples on demand check the predicate on its field first.
+     *
+     * @param columns the indexes of the columns to return, in order, or
+     *                null for all of them
+     * @param projected the TupleDesc of the returned tuples if columns is
+     *                  not null
+     * @param predicate the predicate, or null to return every tuple
+     */
+    default Iterator<Tuple> iterator(int[] columns, TupleDesc projected, Predicate predicate) {
+        List<Tuple> result = new ArrayList<>();
+        Iterator<Tuple> it = iterator();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (predicate == null || predicate.filter(t)) {
+                result.add(columns == null ? t : t.project(columns, projected));
+            }
+        }
+        return result.iterator();
+    }
+}
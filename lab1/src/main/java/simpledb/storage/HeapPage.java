@@ -4,13 +4,20 @@ import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
@@ -19,15 +26,24 @@ import java.util.NoSuchElementException;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage, HeapFilePage {
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
+    final int headerSize;
+    //已解码的tuple，null表示空slot或者还没解码；解码时在tuples上同步
     final Tuple[] tuples;
     final int numSlots;
+    //页数据，开头是header，插入删除时只改动对应slot和header字节；没解码过的tuple/字段按需从这里解码
+    //第一次修改前image为null，直接读source（可能是映射文件的只读切片），修改时才复制出image
+    private byte[] image;
+    private ByteBuffer source;
+    //每个字段在tuple中的偏移
+    private final int[] fieldOffsets;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    private final Object oldDataLock = new Object();
+    //页内存latch，只在读写image/tuples时短暂持有，与事务锁无关
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
     private Boolean dirty;
     private TransactionId transactionId;
 
@@ -51,30 +67,98 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage from a buffer holding the bytes of the page, from its
+     * position on, in the format described in {@link #HeapPage(HeapPageId, byte[])}.
+     * The buffer can be a slice of a mapped file.
+     * <p>
+     * The page reads the bytes in place until it is first modified, and only
+     * then copies them, so the caller must not change them meanwhile; the
+     * constructor taking an array does not copy it either.
+     * <p>
+     * Tuples are not decoded here: a tuple is decoded the first time it is
+     * asked for, by {@link #iterator} or {@link #getTuple}, and
+     * {@link #getField} decodes a single field without building the tuple.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
         this.dirty = false;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
+        this.fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<fieldOffsets.length; j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
+        // keep a view of the page, the tuples are decoded on demand
+        headerSize = getHeaderSize();
+        if (data.remaining() < headerSize) {
+            throw new EOFException("page " + id + " is too short");
+        }
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        source = data.slice().asReadOnlyBuffer();
+        if (source.remaining() < BufferPool.getPageSize()) {
+            // 页不完整，缺的字节当作0，直接复制
+            image = copySource();
+            source = null;
+        } else {
+            source.limit(BufferPool.getPageSize());
         }
-        dis.close();
 
         setBeforeImage();
     }
 
+    /**
+     * 复制source，空slot和末尾的填充都清零
+     */
+    private byte[] copySource() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        source.duplicate().get(data, 0, Math.min(source.remaining(), data.length));
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                Arrays.fill(data, slotOffset(i), slotOffset(i) + td.getSize(), (byte) 0);
+            }
+        }
+        Arrays.fill(data, slotOffset(numSlots), data.length, (byte) 0);
+        return data;
+    }
+
+    /**
+     * 第一次修改前复制出image，调用时持有写latch。before image没有单独复制过的话就是source，先留一份
+     */
+    private void materialize() {
+        if (image != null) {
+            return;
+        }
+        byte[] data = copySource();
+        synchronized(oldDataLock)
+        {
+            if (oldData == null) {
+                oldData = data.clone();
+            }
+            image = data;
+            source = null;
+        }
+    }
+
+    // 页数据中从offset开始len个字节的视图
+    private ByteBuffer region(int offset, int len) {
+        if (image != null) {
+            return ByteBuffer.wrap(image, offset, len);
+        }
+        ByteBuffer buf = source.duplicate();
+        buf.limit(offset + len);
+        buf.position(offset);
+        return buf;
+    }
+
+    // header的第i个字节
+    private byte headerByte(int i) {
+        return image != null ? image[i] : source.get(i);
+    }
+
     /** Retrieve the number of tuples on this page.
      * 在header中，每一个tuple都有一bit来表示记录是否有效
      @return the number of tuples on this page
@@ -100,9 +184,15 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            ByteBuffer sourceRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                sourceRef = source;
+            }
+            if (oldDataRef == null) {
+                //还没修改过，before image就是source
+                return new HeapPage(pid,sourceRef);
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -114,12 +204,23 @@ public class HeapPage implements Page {
     }
 
     public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-            oldData = getPageData().clone();
+        latch.readLock().lock();
+        try {
+            //没修改过的页before image就是source，null表示不用复制
+            byte[] data = image == null ? null : image.clone();
+            synchronized(oldDataLock)
+            {
+                oldData = data;
+            }
+        } finally {
+            latch.readLock().unlock();
         }
     }
 
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -129,32 +230,22 @@ public class HeapPage implements Page {
     }
 
     /**
-     * 从流中读取一个tuple，这个next就很歧义。。。其实就是获取当前slotId的tuple
-     * 注意：这里因为是在初始化时流式的读取，因此就算为空也要读取完这个空tuple，方便读取下一个tuple
-     * Suck up tuples from the source file.
+     * 解码第slotId个tuple，空slot返回null
+     * Decode a tuple from the page image.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private Tuple decodeTuple(int slotId) throws NoSuchElementException {
         if (!isSlotUsed(slotId)) {
-            //空tuple要将空bit读完
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
         // read fields in the tuple
+        ByteBuffer buf = region(slotOffset(slotId), td.getSize());
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
+                Field f = td.getFieldType(j).parse(buf);
                 t.setField(j, f);
             }
         } catch (java.text.ParseException e) {
@@ -165,6 +256,65 @@ public class HeapPage implements Page {
         return t;
     }
 
+    // 已解码的tuple，没有解码返回null
+    private Tuple cachedTuple(int slotId) {
+        synchronized (tuples) {
+            return tuples[slotId];
+        }
+    }
+
+    /**
+     * Return the tuple in the specified slot, decoding it on first use.  The
+     * same Tuple object is returned until the page is discarded.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slotId) {
+        latch.readLock().lock();
+        try {
+            if (!isSlotUsed(slotId)) {
+                return null;
+            }
+            synchronized (tuples) {
+                if (tuples[slotId] == null) {
+                    tuples[slotId] = decodeTuple(slotId);
+                }
+                return tuples[slotId];
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return one field of the tuple in the specified slot, decoding only that
+     * field if the tuple has not been decoded.
+     *
+     * @return the field, or null if the slot is empty
+     */
+    public Field getField(int slotId, int fieldIndex) {
+        latch.readLock().lock();
+        try {
+            if (!isSlotUsed(slotId)) {
+                return null;
+            }
+            Tuple t = cachedTuple(slotId);
+            if (t != null) {
+                return t.getField(fieldIndex);
+            }
+            Type type = td.getFieldType(fieldIndex);
+            int offset = slotOffset(slotId) + fieldOffsets[fieldIndex];
+            try {
+                return type.parse(region(offset, type.getLen()));
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -172,67 +322,42 @@ public class HeapPage implements Page {
      * The invariant here is that it should be possible to pass the byte
      * array generated by getPageData to the HeapPage constructor and
      * have it produce an identical HeapPage object.
+     * <p>
+     * The page keeps its image up to date as tuples are inserted and
+     * deleted, so this is a copy of that image, or of the bytes the page was
+     * created from if it was never modified.  Changing the fields of a
+     * tuple after it was inserted does not change the page.
      *
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
+        latch.readLock().lock();
+        try {
+            return image != null ? image.clone() : copySource();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 第i个slot在页数据中的起始位置
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
+    }
 
-        // create the header of the page
-        for (byte b : header) {
+    // 把tuple编码进第i个slot
+    private void writeSlot(int i, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int j=0; j<td.numFields(); j++) {
             try {
-                dos.writeByte(b);
+                t.getField(j).serialize(dos);
             } catch (IOException e) {
                 // this really shouldn't happen
                 e.printStackTrace();
             }
         }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        System.arraycopy(baos.toByteArray(), 0, image, slotOffset(i), td.getSize());
     }
 
     /**
@@ -257,6 +382,16 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            deleteTupleLatched(t);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void deleteTupleLatched(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
 //        for(int i=0;i<getNumTuples();i++){
@@ -274,9 +409,11 @@ public class HeapPage implements Page {
 //            }
 //        }
         int tupleNumber = t.getRecordId().getTupleNumber();
-        if(isSlotUsed(tupleNumber) && tuples[tupleNumber].equals(t) ){
+        if(isSlotUsed(tupleNumber) && t.equals(tuples[tupleNumber]) ){
+            materialize();
             tuples[tupleNumber] = null;
             markSlotUsed(tupleNumber,false);
+            Arrays.fill(image, slotOffset(tupleNumber), slotOffset(tupleNumber) + td.getSize(), (byte) 0);
             return;
         }
         throw new DbException("tuple is not in tuples");
@@ -290,6 +427,16 @@ public class HeapPage implements Page {
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            insertTupleLatched(t);
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 调用时持有写latch
+    private void insertTupleLatched(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if(getNumUnusedSlots()==0){
@@ -304,6 +451,8 @@ public class HeapPage implements Page {
                 continue;
             }
             if(!isSlotUsed(i)){
+                materialize();
+                writeSlot(i,t);
                 tuples[i]  =t;
                 tuples[i].setRecordId(new RecordId(pid,i));
                 markSlotUsed(i,true);
@@ -340,10 +489,20 @@ public class HeapPage implements Page {
      * Returns the number of empty slots on this page.
      */
     public int getNumUnusedSlots() {
+        latch.readLock().lock();
+        try {
+            return getNumUnusedSlotsLatched();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 调用时持有读latch
+    private int getNumUnusedSlotsLatched() {
         // some code goes here
         int count = 0;
         for(int i=0;i<numSlots;i++){
-            if(((header[i/8]>>(i%8))&1)==0){
+            if(((headerByte(i/8)>>(i%8))&1)==0){
                 count++;
             }
         }
@@ -357,7 +516,22 @@ public class HeapPage implements Page {
         // some code goes here
         int index = i/8;
         int offset = i%8;
-        return ((header[index]>>offset)&1) == 1;
+        return ((headerByte(index)>>offset)&1) == 1;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * 第i个tuple在页数据中的位置：header之后依次存放各slot
+     */
+    public int[] getSlotRanges(int i) {
+        return new int[]{slotOffset(i), td.getSize()};
+    }
+
+    public HeapPage newInstance(byte[] data) throws IOException {
+        return new HeapPage(pid, data);
     }
 
     /**
@@ -369,11 +543,11 @@ public class HeapPage implements Page {
         int index = i/8;
         int offset = i%8;
         int tmp = 1<<(offset);
-        byte b = header[index];
+        byte b = image[index];
         if(value){
-            header[index] =(byte) (b | tmp);
+            image[index] =(byte) (b | tmp);
         }else{
-            header[index] = (byte) (b & ~tmp);
+            image[index] = (byte) (b & ~tmp);
         }
     }
 
@@ -383,13 +557,79 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        List<Tuple> tuples = new ArrayList<>();
-        for(int i=0;i<numSlots;i++){
-            if(isSlotUsed(i)){
-                tuples.add(this.tuples[i]);
+        return slotIterator(this::getTuple);
+    }
+
+    /**
+     * Return an iterator over the tuples on this page that pass the
+     * specified predicate, with just the specified columns.  The field the
+     * predicate checks is decoded first, see {@link #getField}, and only the
+     * tuples that pass are decoded.
+     *
+     * @see HeapFilePage#iterator(int[], TupleDesc, Predicate)
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, Predicate predicate) {
+        return slotIterator(slotId -> readSlot(slotId, columns, projected, predicate));
+    }
+
+    // 先检查谓词用到的字段，通过了才解码需要的列；空slot或者没通过返回null
+    private Tuple readSlot(int slotId, int[] columns, TupleDesc projected, Predicate predicate) {
+        if (predicate != null) {
+            Field f = getField(slotId, predicate.getField());
+            if (f == null || !f.compare(predicate.getOp(), predicate.getOperand())) {
+                return null;
+            }
+        }
+        if (columns == null) {
+            return getTuple(slotId);
+        }
+        Tuple t = new Tuple(projected);
+        t.setRecordId(new RecordId(pid, slotId));
+        for (int k = 0; k < columns.length; k++) {
+            Field f = getField(slotId, columns[k]);
+            if (f == null) {
+                return null;
             }
+            t.setField(k, f);
         }
-        return tuples.iterator();
+        return t;
+    }
+
+    private Iterator<Tuple> slotIterator(IntFunction<Tuple> read) {
+        //先记下现在有哪些slot有tuple，迭代到时才解码；迭代期间被删掉的跳过，新插入的不返回
+        List<Integer> used = new ArrayList<>();
+        latch.readLock().lock();
+        try {
+            for(int i=0;i<numSlots;i++){
+                if(isSlotUsed(i)){
+                    used.add(i);
+                }
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+        Iterator<Integer> slots = used.iterator();
+        return new Iterator<Tuple>() {
+            private Tuple next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && slots.hasNext()) {
+                    next = read.apply(slots.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
     }
 }
 
@@ -4,13 +4,28 @@ import simpledb.common.Database;
 import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -46,40 +61,102 @@ must not be declared synchronized and must begin with a block like:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log records live in a sequence of fixed-size segment files
+ * next to the log file, named after it with a six digit segment number
+ * appended (log.000000, log.000001, ...).  The log file itself is a small
+ * control file: its first long integer is the LSN of the last written
+ * checkpoint, or -1 if there are no checkpoints, and its second one the
+ * LSN at which the oldest segment still in use starts.  A third long
+ * integer equal to the first one marks a clean shutdown after that
+ * checkpoint (see {@link #shutdown}); any other value, or none, means the
+ * database may have stopped at any point.
  *
- * <li> All additional data in the log consists of log records.  Log
- * records are variable length.
+ * <li> The segments hold one continuous stream of log records; a record
+ * may straddle two segments.  Log records are variable length.
  *
- * <li> Each log record begins with an integer type and a long integer
- * transaction id.
+ * <li> Each log record begins with a byte type, a long integer
+ * transaction id and the integer length of the record body that follows.
  *
- * <li> Each log record ends with a long integer file offset representing
- * the position in the log file where the record began.
+ * <li> Each log record ends with an integer CRC32 of its header and body,
+ * and a long integer LSN representing the position in the log stream
+ * where the record began.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are seven record types: ABORT, COMMIT, UPDATE, SLOT, BEGIN,
+ * CHECKPOINT and EXTENT
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
+ * <li> Pages and page ids are referred to by their numeric type from the
+ * {@link PageRegistry} (a byte), their table id and their page number.
+ *
  * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * after image.  These images are serialized Page objects: the page
+ * reference, then the id of the {@link PageImageCodec} that encoded the
+ * page image, and the length and bytes of the encoded image.  The after
+ * image is encoded against the before image, which by default
+ * ({@link XorRleImageCodec}) leaves little more than the changed bytes.
+ * They can be accessed with the LogFile.readPageData() and
+ * LogFile.writePageData() methods.  See LogFile.print() for an example.
+ *
+ * <li> SLOT records describe an update to a {@link SlottedPage} (a heap
+ * page or a B+ tree leaf or internal page) by the slots it inserted,
+ * deleted or changed.  They consist of the page reference followed by a
+ * {@link SlotDelta}, and are logged instead of an UPDATE record whenever
+ * both images are slotted pages.
+ *
+ * <li> EXTENT records describe new pages that a bulk load wrote straight to
+ * the data file (see {@link HeapFile#bulkLoad}): the reference of the
+ * first page and an integer number of pages.  They are forced before the
+ * pages are written, and undone by emptying the pages; there is nothing to
+ * redo.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * the checkpoint was taken and their first log record on disk, followed by
+ * the dirty page table of the buffer pool.  The format of the record is an
+ * integer count of the number of transactions, as well as a long integer
+ * transaction id and a long integer first record LSN for each active
+ * transaction; then an integer count of dirty pages, as well as a page
+ * reference and a long integer recLSN for each dirty page.
  *
  * </ul>
+ *
+ * <p> Records are not written to the file one field at a time.  Each
+ * record is serialized into memory and appended to an in-memory log
+ * buffer, which is written out with large sequential FileChannel writes
+ * when it fills up or when somebody needs the log durable.  Every record
+ * is identified by its log sequence number (LSN): the position of its
+ * first byte in the log stream, so that record LSN / SEGMENT_SIZE is the
+ * segment holding it.
+ *
+ * <p> Segments are preallocated to their full size when they are created,
+ * so appending never changes a file length and forcing the log only
+ * needs to flush data.  Truncating the log after a checkpoint does not
+ * rewrite anything: segments that lie entirely before the oldest record
+ * still needed are renamed to become future segments (up to
+ * MAX_SPARE_SEGMENTS of them; the rest are deleted), and the control file
+ * is updated to point past them.  Since a recycled segment still holds
+ * the records of its previous life, a scan tells the end of the log from
+ * the first record whose trailing LSN does not match its position.
+ *
+ * <p> Checkpoints are fuzzy: they write no pages and do not stop the
+ * buffer pool, they only record which transactions are active and which
+ * pages may be missing logged changes in their data files, from which
+ * recLSN on.  A background {@link PageWriter} writes those pages back.
+ *
+ * <p> Recovery follows ARIES: an analysis pass starting at the last
+ * checkpoint rebuilds the table of active transactions, a redo pass
+ * repeats history for every update since the checkpoint, and for the
+ * pages of the checkpoint's dirty page table from their recLSN on, and an
+ * undo pass rolls back the transactions that were still active at the crash.  Undo
+ * (here and in {@link #rollback}) logs every page it restores as a
+ * compensation UPDATE record, so a later redo pass reproduces the rollback
+ * instead of resurrecting the undone update.
  */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the control file
+    private final LogFlusher flusher;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -87,16 +164,199 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int SLOT_RECORD = 6;
+    static final int EXTENT_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    /** Record header: type, transaction id and body length */
+    static final int HEADER_SIZE = 1 + LONG_SIZE + INT_SIZE;
+    /** Record trailer: CRC and start LSN */
+    static final int TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+
+    /** Size of the in-memory log buffer */
+    static final int LOG_BUFFER_SIZE = 1 << 20;
+
+    /** Size of a log segment file */
+    static final long SEGMENT_SIZE = 16 << 20;
+
+    /** Number of old segments kept around for reuse after a truncation */
+    static final int MAX_SPARE_SEGMENTS = 2;
+
+    /** Number of threads the redo pass of recovery is spread over */
+    static final int REDO_THREADS = Runtime.getRuntime().availableProcessors();
+
+    long currentOffset = -1;// LSN of the next record, protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
+    // LSN of the first UPDATE or SLOT record of a live transaction; one
+    // that has none rolls back without reading the log
+    private final Map<Long, Long> tidToFirstUpdate = new HashMap<>(); // protected by this
+    private long asyncCommitLsn = -1; // last async commit record, protected by this
+
+    private PageImageCodec imageCodec = new XorRleImageCodec(); // protected by this
+
+    /*
+     Log buffer state, all protected by this.  The buffer holds the bytes
+     of the log from LSN bufferStart up to currentOffset that have not been
+     written to the segments yet.  The record being built is serialized
+     into record first, so that a record is always copied into the buffer
+     as a whole.  logStart is the LSN at which the oldest segment still in
+     use begins.
+    */
+    private final ByteBuffer logBuffer = ByteBuffer.allocate(LOG_BUFFER_SIZE);
+    private long bufferStart = -1;
+    private final RecordBuffer record = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private long logStart = 0;
+
+    // open segment files by segment number; new entries are added under the
+    // map's own monitor, so that the redo workers can open segments too
+    private final Map<Long, FileChannel> segments = new ConcurrentHashMap<>();
+
+    /*
+     Group commit state.  writtenLsn is the end of the part of the log that
+     has been handed to the OS, durableLsn the end of the part known to be
+     on disk.  A thread that needs its records durable first writes out the
+     log buffer (under this), then becomes the force leader if no force is
+     running, otherwise it waits for the running force to finish and
+     re-checks; one fsync thus covers every record written before it
+     started.  forceLock is always acquired after (never before) the
+     LogFile monitor, and neither is held during the fsync itself.
+    */
+    private final Object forceLock = new Object();
+    private volatile long writtenLsn = 0; // written under this
+    private long durableLsn = 0; // protected by forceLock
+    private boolean forceInProgress = false; // protected by forceLock
+
+    /** A ByteArrayOutputStream whose backing array can be copied without a temporary */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        RecordBuffer() {
+            super(4096);
+        }
+
+        void copyTo(ByteBuffer dst) {
+            dst.put(buf, 0, count);
+        }
+
+        ByteBuffer wrap() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        void patchInt(int position, int v) {
+            buf[position] = (byte) (v >>> 24);
+            buf[position + 1] = (byte) (v >>> 16);
+            buf[position + 2] = (byte) (v >>> 8);
+            buf[position + 3] = (byte) v;
+        }
+
+        int crc() {
+            CRC32 crc = new CRC32();
+            crc.update(buf, 0, count);
+            return (int) crc.getValue();
+        }
+    }
+
+    /** A log record located by a scan of the log file */
+    private static class LogRecord {
+        final int type;
+        final long tid;
+        final long offset; // LSN of the first byte of the record
+        final long end; // LSN just past the record
+        final PageId pid; // page of an UPDATE, SLOT or EXTENT record, null otherwise
+
+        LogRecord(int type, long tid, long offset, long end, PageId pid) {
+            this.type = type;
+            this.tid = tid;
+            this.offset = offset;
+            this.end = end;
+            this.pid = pid;
+        }
+    }
+
+    /** A page being rolled back: the image being undone and the one to restore */
+    private static class PageRestore {
+        final long tid;
+        final Page undone;
+        final Page restored;
+
+        PageRestore(long tid, Page undone, Page restored) {
+            this.tid = tid;
+            this.undone = undone;
+            this.restored = restored;
+        }
+    }
+
+    /** Counts the bytes read through it, starting from a given LSN */
+    private static class CountingInputStream extends FilterInputStream {
+        long position;
+
+        CountingInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /** Reads the log stream from a given LSN on, across segment boundaries */
+    private class SegmentInputStream extends InputStream {
+        private long position;
+
+        SegmentInputStream(long position) {
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            FileChannel channel = segment(position / SEGMENT_SIZE, false);
+            if (channel == null) {
+                return -1; // past the last segment
+            }
+            long segmentOffset = position % SEGMENT_SIZE;
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, SEGMENT_SIZE - segmentOffset)), segmentOffset);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+    }
 
     /**
      * Constructor.
@@ -114,6 +374,8 @@ public class LogFile {
         this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        flusher = new LogFlusher(this);
+        flusher.start();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -133,21 +395,219 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            // the old segments hold records with the LSNs the new log is
+            // going to use, so they cannot be recycled
+            deleteSegments();
+            logStart = 0;
+            writeControl(NO_CHECKPOINT_ID, logStart);
+            currentOffset = logStart;
+            resetBuffer();
+        }
+    }
+
+    // the log buffer starts empty at currentOffset, which is already in the segments
+    private void resetBuffer() {
+        logBuffer.clear();
+        bufferStart = currentOffset;
+        writtenLsn = currentOffset;
+    }
+
+    private File segmentFile(long segNo) {
+        return new File(logFile.getPath() + String.format(".%06d", segNo));
+    }
+
+    // the segment number of a file of this log, or -1
+    private long segmentNumber(File f) {
+        String prefix = logFile.getName() + ".";
+        String name = f.getName();
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + 6) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // the segment numbers of all segment files of this log on disk, in order
+    private SortedSet<Long> listSegments() {
+        SortedSet<Long> segNos = new TreeSet<>();
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File f : files) {
+                long segNo = segmentNumber(f);
+                if (segNo >= 0) {
+                    segNos.add(segNo);
+                }
+            }
+        }
+        return segNos;
+    }
+
+    /**
+     * Return the channel of the specified segment, opening the segment file
+     * if necessary.  A segment that does not exist is created (and
+     * preallocated to SEGMENT_SIZE bytes) if create is set, otherwise null
+     * is returned.
+     */
+    private FileChannel segment(long segNo, boolean create) throws IOException {
+        FileChannel channel = segments.get(segNo);
+        if (channel != null) {
+            return channel;
+        }
+        synchronized (segments) {
+            channel = segments.get(segNo);
+            if (channel == null) {
+                File f = segmentFile(segNo);
+                if (!create && !f.exists()) {
+                    return null;
+                }
+                RandomAccessFile segmentRaf = new RandomAccessFile(f, "rw");
+                if (segmentRaf.length() < SEGMENT_SIZE) {
+                    segmentRaf.setLength(SEGMENT_SIZE);
+                }
+                channel = segmentRaf.getChannel();
+                segments.put(segNo, channel);
+            }
+            return channel;
         }
     }
 
+    // close a segment file if it is open
+    private void closeSegment(long segNo) throws IOException {
+        FileChannel channel = segments.remove(segNo);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void deleteSegments() throws IOException {
+        for (Long segNo : new ArrayList<>(segments.keySet())) {
+            closeSegment(segNo);
+        }
+        for (long segNo : listSegments()) {
+            segmentFile(segNo).delete();
+        }
+    }
+
+    // the control file: checkpoint LSN, then the LSN the log starts at
+    private long[] readControl() throws IOException {
+        if (raf.length() < 2 * LONG_SIZE) {
+            return new long[]{NO_CHECKPOINT_ID, 0, NO_CHECKPOINT_ID};
+        }
+        raf.seek(0);
+        long checkpointLsn = raf.readLong();
+        long startLsn = raf.readLong();
+        long cleanLsn = raf.length() < 3 * LONG_SIZE ? NO_CHECKPOINT_ID : raf.readLong();
+        return new long[]{checkpointLsn, startLsn, cleanLsn};
+    }
+
+    private void writeControl(long checkpointLsn, long startLsn) throws IOException {
+        writeControl(checkpointLsn, startLsn, NO_CHECKPOINT_ID);
+    }
+
+    private void writeControl(long checkpointLsn, long startLsn, long cleanLsn) throws IOException {
+        raf.seek(0);
+        raf.writeLong(checkpointLsn);
+        raf.writeLong(startLsn);
+        raf.writeLong(cleanLsn);
+        raf.getChannel().force(true);
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
 
     /**
-     * Write an abort record to the log for the specified tid, force
-     * the log to disk, and perform a rollback
+     * @return the LSN that the next appended log record will get (0 before
+     * anything was appended)
+     */
+    public synchronized long getCurrentLsn() {
+        return Math.max(currentOffset, 0);
+    }
+
+    // start serializing a new record; returns its LSN
+    private long beginRecord(int type, long tid) throws IOException {
+        record.reset();
+        recordOut.writeByte(type);
+        recordOut.writeLong(tid);
+        recordOut.writeInt(0); // body length, set by endRecord
+        return currentOffset;
+    }
+
+    // finish the record begun at start and append it to the log buffer;
+    // returns its LSN
+    private long endRecord(long start) throws IOException {
+        record.patchInt(1 + LONG_SIZE, record.size() - HEADER_SIZE);
+        recordOut.writeInt(record.crc());
+        //all records finish with a pointer to their start
+        recordOut.writeLong(start);
+        int len = record.size();
+        if (len > logBuffer.remaining()) {
+            writeBuffer();
+        }
+        if (len > logBuffer.capacity()) {
+            // too big to ever fit: write it straight through
+            writeFully(record.wrap(), currentOffset);
+            currentOffset += len;
+            resetBuffer();
+        } else {
+            record.copyTo(logBuffer);
+            currentOffset += len;
+        }
+        return start;
+    }
+
+    // hand the contents of the log buffer to the OS (under this)
+    private void writeBuffer() throws IOException {
+        if (logBuffer.position() > 0) {
+            logBuffer.flip();
+            writeFully(logBuffer, bufferStart);
+        }
+        resetBuffer();
+    }
+
+    // write src to the log stream at the specified LSN, splitting it at
+    // segment boundaries
+    private void writeFully(ByteBuffer src, long lsn) throws IOException {
+        int limit = src.limit();
+        while (src.hasRemaining()) {
+            long segmentOffset = lsn % SEGMENT_SIZE;
+            FileChannel channel = segment(lsn / SEGMENT_SIZE, true);
+            src.limit((int) Math.min(limit, src.position() + SEGMENT_SIZE - segmentOffset));
+            while (src.hasRemaining()) {
+                int n = channel.write(src, segmentOffset);
+                segmentOffset += n;
+                lsn += n;
+            }
+            src.limit(limit);
+        }
+    }
+
+    // fill dst from the log stream at the specified LSN
+    private void readFully(ByteBuffer dst, long lsn) throws IOException {
+        while (dst.hasRemaining()) {
+            FileChannel channel = segment(lsn / SEGMENT_SIZE, false);
+            if (channel == null) {
+                throw new EOFException();
+            }
+            long segmentOffset = lsn % SEGMENT_SIZE;
+            int limit = dst.limit();
+            dst.limit((int) Math.min(limit, dst.position() + SEGMENT_SIZE - segmentOffset));
+            int n = channel.read(dst, segmentOffset);
+            dst.limit(limit);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            lsn += n;
+        }
+    }
+
+    /**
+     * Perform a rollback and write an abort record to the log for the
+     * specified tid.  The log is not forced.  A transaction that never
+     * reached the log, or that was already aborted, is left alone.
      *
      * @param tid The aborting transaction.
      */
@@ -160,18 +620,20 @@ public class LogFile {
             synchronized (this) {
                 preAppend();
                 //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
+                if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                    return; // nothing to roll back, or already aborted
+                }
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                // no force: if the record is lost, recovery treats the
+                // transaction as a loser and undoes it all the same
+                long start = beginRecord(ABORT_RECORD, tid.getId());
+                endRecord(start);
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToFirstUpdate.remove(tid.getId());
             }
         }
     }
@@ -179,20 +641,64 @@ public class LogFile {
     /**
      * Write a commit record to disk for the specified tid,
      * and force the log to disk.
+     * <p>
+     * The record is appended under the log monitor but the force happens
+     * outside of it, so that concurrent committers can append their own
+     * records meanwhile and share a single fsync (group commit).  Once the
+     * log is durable up to the commit record the transaction is committed;
+     * its pages are written back later (NO-FORCE).  A transaction that
+     * never reached the log has nothing to commit and writes no record.
      *
      * @param tid The committing transaction.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        logCommit(tid, false);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Write a commit record for the specified tid.  Unless async is set,
+     * wait until the log is durable up to the record, as
+     * {@link #logCommit(TransactionId)} does.  With async the caller only
+     * waits for the record to be appended; the {@link LogFlusher} forces it
+     * within {@link LogFlusher#INTERVAL_MS} milliseconds, and a crash in
+     * between loses the transaction.
+     *
+     * @param tid The committing transaction.
+     * @param async whether to return before the record is durable
+     */
+    public void logCommit(TransactionId tid, boolean async) throws IOException {
+        long commitLsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            if (!tidToFirstLogRecord.containsKey(tid.getId())) {
+                return;
+            }
+
+            long start = beginRecord(COMMIT_RECORD, tid.getId());
+            commitLsn = endRecord(start);
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToFirstUpdate.remove(tid.getId());
+            if (async) {
+                asyncCommitLsn = Math.max(asyncCommitLsn, commitLsn);
+                return;
+            }
+        }
+        force(commitLsn);
+    }
+
+    /**
+     * Make every async commit record appended so far durable.  Called by
+     * the {@link LogFlusher}.
+     */
+    void flushAsyncCommits() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = asyncCommitLsn;
+        }
+        if (lsn >= 0) {
+            force(lsn);
+        }
     }
 
     /**
@@ -202,12 +708,13 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
@@ -217,91 +724,159 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf, before);
-        writePageData(raf, after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long lsn = appendUpdate(tid.getId(), before, after);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    // append an UPDATE record (under this); a transaction that never logged
+    // a BEGIN record is live from its first update on
+    private long appendUpdate(long tid, Page before, Page after) throws IOException {
+        if (before instanceof SlottedPage && before.getClass() == after.getClass()) {
+            long start = beginRecord(SLOT_RECORD, tid);
+            tidToFirstLogRecord.putIfAbsent(tid, start);
+            tidToFirstUpdate.putIfAbsent(tid, start);
+
+            writePageRef(recordOut, PageRegistry.typeOf(after), after.getId());
+            SlotDelta.compute((SlottedPage) before, (SlottedPage) after).serialize(recordOut);
+            return endRecord(start);
+        }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        long start = beginRecord(UPDATE_RECORD, tid);
+        tidToFirstLogRecord.putIfAbsent(tid, start);
+        tidToFirstUpdate.putIfAbsent(tid, start);
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        writePageData(recordOut, before);
+        writePageData(recordOut, after, before.getPageData());
+        return endRecord(start);
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    private static void writePageRef(DataOutput out, int pageType, PageId pid) throws IOException {
+        out.writeByte(pageType);
+        out.writeInt(pid.getTableId());
+        out.writeInt(pid.getPageNumber());
+    }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
-        }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    static boolean isUpdate(int type) {
+        return type == UPDATE_RECORD || type == SLOT_RECORD;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    // records that rollback and the undo pass of recovery have to undo
+    static boolean isUndoable(int type) {
+        return isUpdate(type) || type == EXTENT_RECORD;
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /**
+     * Set the codec that page images are logged with from now on.  Records
+     * already in the log keep the codec they were written with.
+     */
+    public synchronized void setImageCodec(PageImageCodec codec) {
+        imageCodec = codec;
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+    void writePageData(DataOutput out, Page p) throws IOException {
+        writePageData(out, p, null);
+    }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
+    // write a page image, encoded against the reference image if there is one
+    void writePageData(DataOutput out, Page p, byte[] reference) throws IOException {
+        //page data is:
+        // page type (see PageRegistry)
+        // table id
+        // page number
+        // codec id
+        // page class bytes
+        // page class data
+        writePageRef(out, PageRegistry.typeOf(p), p.getId());
+        byte[] pageData = imageCodec.encode(p.getPageData(), reference);
+        out.writeByte(imageCodec.getId());
+        out.writeInt(pageData.length);
+        out.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    Page readPageData(DataInput in) throws IOException {
+        return readPageImage(in, null).toPage();
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** A decoded page image, before it is turned into a page */
+    private static class PageImage {
+        final int pageType;
+        final PageId pid;
+        final byte[] data;
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        PageImage(int pageType, PageId pid, byte[] data) {
+            this.pageType = pageType;
+            this.pid = pid;
+            this.data = data;
+        }
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+        Page toPage() throws IOException {
+            return PageRegistry.createPage(pageType, pid, data);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+    // read a page image written by writePageData with the same reference
+    private static PageImage readPageImage(DataInput in, byte[] reference) throws IOException {
+        int pageType = in.readUnsignedByte();
+        PageId pid = PageRegistry.createId(pageType, in.readInt(), in.readInt());
+        PageImageCodec codec = PageImageCodec.forId(in.readUnsignedByte());
+        int pageSize = in.readInt();
+        if (pageSize < 0 || pageSize > SEGMENT_SIZE) {
+            throw new IOException("bad page image in log");
         }
-        return newPage;
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData); //read before image
+        return new PageImage(pageType, pid, codec.decode(pageData, reference));
+    }
+
+    private static PageId readPageId(DataInput in) throws IOException {
+        int pageType = in.readUnsignedByte();
+        return PageRegistry.createId(pageType, in.readInt(), in.readInt());
+    }
 
+    private static void skipFully(DataInput in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Write an EXTENT record for new pages that the specified transaction
+     * is about to write straight to their data file, and force the log:
+     * the pages must not reach the file before the record that allows
+     * undoing them.
+     *
+     * @param tid The transaction writing the pages
+     * @param first The id of the first page of the extent
+     * @param numPages The number of consecutive pages in the extent
+     */
+    public void logExtent(TransactionId tid, PageId first, int numPages) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            long start = beginRecord(EXTENT_RECORD, tid.getId());
+            tidToFirstLogRecord.putIfAbsent(tid.getId(), start);
+            tidToFirstUpdate.putIfAbsent(tid.getId(), start);
+            writePageRef(recordOut, PageRegistry.typeOf(first), first);
+            recordOut.writeInt(numPages);
+            lsn = endRecord(start);
+        }
+        force(lsn);
     }
 
     /**
      * Write a BEGIN record for the specified transaction
      *
      * @param tid The transaction that is beginning
+     * @return the LSN of the record
      */
-    public synchronized void logXactionBegin(TransactionId tid)
+    public synchronized long logXactionBegin(TransactionId tid)
             throws IOException {
         Debug.log("BEGIN");
         if (tidToFirstLogRecord.get(tid.getId()) != null) {
@@ -309,153 +884,152 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), start);
+        long lsn = endRecord(start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
+        return lsn;
     }
 
     /**
-     * Checkpoint the log and write a checkpoint record.
+     * Checkpoint the log and write a checkpoint record.  No page is written
+     * and the buffer pool is not locked: the record lists the dirty page
+     * table instead, and redo starts from the oldest recLSN in it.  The
+     * table files then write their own metadata, see {@link DbFile#sync}.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // pages only enter the table before their records are appended
+            // (see BufferPool), so every update before the checkpoint
+            // record is covered by this snapshot or already written back
+            Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+            startCpOffset = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            recordOut.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                recordOut.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                recordOut.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            recordOut.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageRef(recordOut, PageRegistry.typeOf(e.getKey()), e.getKey());
+                recordOut.writeLong(e.getValue());
             }
+            endRecord(startCpOffset);
+
+            //once the CP is durable, make sure the CP location in the
+            // control file is updated
+            force();
+            writeControl(startCpOffset, logStart);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
+        Database.getCatalog().syncFiles();
 
         logTruncate();
     }
 
+    /** The contents of a checkpoint record */
+    private static class Checkpoint {
+        final Map<Long, Long> active = new HashMap<>(); // tid -> first record
+        final Map<PageId, Long> dirtyPages = new HashMap<>(); // pid -> recLSN
+
+        // the oldest record recovery may need
+        long minLsn(long cpLsn) {
+            long min = cpLsn;
+            for (long lsn : active.values()) {
+                min = Math.min(min, lsn);
+            }
+            for (long lsn : dirtyPages.values()) {
+                min = Math.min(min, lsn);
+            }
+            return min;
+        }
+    }
+
+    private Checkpoint readCheckpoint(long cpLsn) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new SegmentInputStream(cpLsn)));
+        if (in.readUnsignedByte() != CHECKPOINT_RECORD) {
+            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+        }
+        skipFully(in, LONG_SIZE + INT_SIZE);
+        Checkpoint cp = new Checkpoint();
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            long tid = in.readLong();
+            cp.active.put(tid, in.readLong());
+        }
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = readPageId(in);
+            cp.dirtyPages.put(pid, in.readLong());
+        }
+        return cp;
+    }
+
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption.  Segments that only hold records older than the last
+     * checkpoint, the first record of every transaction it found active and
+     * the recLSN of every page it found dirty are recycled as future
+     * segments or deleted.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
+        writeBuffer();
+        long cpLoc = readControl()[0];
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
-            int numOutstanding = raf.readInt();
+        long minLogRecord = readCheckpoint(cpLoc).minLsn(cpLoc);
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
+        // we can truncate every segment before the one holding minLogRecord
+        long firstKept = minLogRecord / SEGMENT_SIZE;
+        if (firstKept * SEGMENT_SIZE <= logStart) {
+            return;
+        }
+        Debug.log("TRUNCATING LOG;  WAS " + (currentOffset - logStart) + " BYTES ; NEW START : " + firstKept * SEGMENT_SIZE);
+
+        // the control file must not point into a recycled segment
+        logStart = firstKept * SEGMENT_SIZE;
+        writeControl(cpLoc, logStart);
+
+        // a segment must not be closed under a running group force
+        synchronized (forceLock) {
+            while (forceInProgress) {
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while truncating log", e);
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
+            SortedSet<Long> onDisk = listSegments();
+            long head = currentOffset / SEGMENT_SIZE;
+            long last = onDisk.isEmpty() ? head : Math.max(head, onDisk.last());
+            for (long segNo : onDisk.headSet(firstKept)) {
+                closeSegment(segNo);
+                File old = segmentFile(segNo);
+                // the renamed segment keeps its preallocated blocks
+                if (last - head < MAX_SPARE_SEGMENTS && old.renameTo(segmentFile(last + 1))) {
+                    last++;
+                } else {
+                    old.delete();
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
         }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
         //print();
     }
 
@@ -473,7 +1047,18 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 preAppend();
-                // TODO: some code goes here
+                Long firstUpdate = tidToFirstUpdate.get(tid.getId());
+                if (firstUpdate == null) {
+                    return; // no change of this transaction reached the log
+                }
+                writeBuffer();
+                List<LogRecord> updates = new ArrayList<>();
+                for (LogRecord r : scanLog(firstUpdate, currentOffset)) {
+                    if (isUndoable(r.type) && r.tid == tid.getId()) {
+                        updates.add(r);
+                    }
+                }
+                undo(updates, true);
             }
         }
     }
@@ -482,15 +1067,45 @@ public class LogFile {
      * Shutdown the logging system, writing out whatever state
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
+     * <p>
+     * The committed pages of the buffer pool are written back first.  If no
+     * transaction is active, the control file then marks the shutdown as
+     * clean, and the next {@link #recover} keeps the unlogged tables.
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        stopFlusher();
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            // unlogged pages are only on disk once written back
+            Database.getBufferPool().flushCommittedPages();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
+        synchronized (this) {
+            try {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                if (tidToFirstLogRecord.isEmpty()) {
+                    long[] control = readControl();
+                    writeControl(control[0], control[1], control[0]);
+                }
+                raf.close();
+                for (Long segNo : new ArrayList<>(segments.keySet())) {
+                    closeSegment(segNo);
+                }
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop the background {@link LogFlusher} of this log, after it makes
+     * the async commits so far durable.  Called when the log is shut down
+     * or replaced, see {@link Database#reset}.
+     */
+    public void stopFlusher() {
+        flusher.shutdown();
     }
 
     /**
@@ -502,20 +1117,501 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // TODO: some code goes here
+                long[] control = readControl();
+                long cpLoc = control[0];
+                logStart = control[1];
+                boolean clean = cpLoc != NO_CHECKPOINT_ID && control[2] == cpLoc;
+                if (clean) {
+                    // from now on the database can stop at any point again
+                    writeControl(cpLoc, logStart);
+                }
+
+                // unlogged tables are not recovered; after an unclean stop
+                // they are emptied.  Records from before a table became
+                // unlogged are ignored
+                Set<Integer> unlogged = new HashSet<>();
+                Iterator<Integer> tableIds = Database.getCatalog().tableIdIterator();
+                while (tableIds.hasNext()) {
+                    int tableId = tableIds.next();
+                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                    if (!clean && file instanceof HeapFile) {
+                        // the free space map is only saved at checkpoints, so
+                        // it may record as full pages that redo and undo free
+                        ((HeapFile) file).getFreeSpaceMap().forgetFull();
+                    }
+                    if (Database.getCatalog().isUnlogged(tableId)) {
+                        if (!clean) {
+                            // the cached pages are stale and may lie past the new end of
+                            // the file, so they go first
+                            Database.getBufferPool().removeTablePages(tableId);
+                            file.truncate();
+                        }
+                        unlogged.add(tableId);
+                    }
+                }
+
+                // analysis: start from the transactions the checkpoint found
+                // active and the pages it found dirty; the log is scanned
+                // from the first record of any of them, since undo may need
+                // older updates and redo older changes to dirty pages
+                Checkpoint cp = new Checkpoint();
+                long scanStart = logStart;
+                long analysisStart = logStart;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    cp = readCheckpoint(cpLoc);
+                    scanStart = Math.max(logStart, cp.minLsn(cpLoc));
+                    analysisStart = cpLoc;
+                }
+                Map<Long, Long> active = cp.active;
+
+                List<LogRecord> records = scanLog(scanStart, Long.MAX_VALUE);
+                List<LogRecord> redo = new ArrayList<>();
+                for (LogRecord r : records) {
+                    if (r.pid != null && unlogged.contains(r.pid.getTableId())) {
+                        continue;
+                    }
+                    if (r.offset < analysisStart) {
+                        // before the checkpoint only the changes its dirty
+                        // page table says may be missing on disk are redone
+                        Long recLsn = isUpdate(r.type) ? cp.dirtyPages.get(r.pid) : null;
+                        if (recLsn != null && r.offset >= recLsn) {
+                            redo.add(r);
+                        }
+                        continue;
+                    }
+                    switch (r.type) {
+                        case BEGIN_RECORD:
+                            active.put(r.tid, r.offset);
+                            break;
+                        case UPDATE_RECORD:
+                        case SLOT_RECORD:
+                            active.putIfAbsent(r.tid, r.offset);
+                            redo.add(r);
+                            break;
+                        case EXTENT_RECORD:
+                            active.putIfAbsent(r.tid, r.offset);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            active.remove(r.tid);
+                            break;
+                    }
+                }
+
+                // whatever follows the last complete record is a torn write
+                long logEnd = records.isEmpty() ? Math.max(scanStart, analysisStart) : records.get(records.size() - 1).end;
+                truncateTail(logEnd);
+                // new records are appended after the existing log
+                currentOffset = logEnd;
+                resetBuffer();
+                synchronized (forceLock) {
+                    durableLsn = logEnd;
+                }
+
+                // redo: repeat history
+                redo(redo);
+
+                // undo the losers, then end them with an ABORT record
+                List<LogRecord> undo = new ArrayList<>();
+                for (LogRecord r : records) {
+                    Long first = active.get(r.tid);
+                    if (isUndoable(r.type) && first != null && r.offset >= first
+                            && !unlogged.contains(r.pid.getTableId())) {
+                        undo.add(r);
+                    }
+                }
+                undo(undo, false);
+                for (Long tid : active.keySet()) {
+                    long start = beginRecord(ABORT_RECORD, tid);
+                    endRecord(start);
+                }
+                force();
+                tidToFirstLogRecord.clear();
+                tidToFirstUpdate.clear();
+            }
+        }
+    }
+
+    /**
+     * Wipe whatever follows the end of the log found by recovery: zero the
+     * rest of the segment it ends in and delete the later segments.  These
+     * bytes carry the LSNs that new records will get, so a later scan could
+     * otherwise mistake a leftover record for a new one.
+     */
+    private void truncateTail(long logEnd) throws IOException {
+        long tailSegment = logEnd / SEGMENT_SIZE;
+        synchronized (forceLock) {
+            for (long segNo : listSegments().tailSet(tailSegment + 1)) {
+                closeSegment(segNo);
+                segmentFile(segNo).delete();
+            }
+        }
+        FileChannel channel = segment(tailSegment, true);
+        ByteBuffer zeroes = ByteBuffer.allocate(1 << 16);
+        for (long position = logEnd % SEGMENT_SIZE; position < SEGMENT_SIZE; ) {
+            zeroes.clear();
+            zeroes.limit((int) Math.min(zeroes.capacity(), SEGMENT_SIZE - position));
+            position += channel.write(zeroes, position);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Scan the log from the record starting at LSN start up to LSN end, or
+     * up to the first incomplete or garbled record.  Only the record
+     * headers (and page ids of updates) are decoded; the bodies are only
+     * checked against their CRC.  The log buffer must have been written
+     * out.
+     */
+    private List<LogRecord> scanLog(long start, long end) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new SegmentInputStream(start), 1 << 16), start);
+        DataInputStream in = new DataInputStream(counter);
+        byte[] bytes = new byte[4096];
+        CRC32 crc = new CRC32();
+        while (counter.position < end) {
+            long offset = counter.position;
+            try {
+                int type = in.readUnsignedByte();
+                if (type < ABORT_RECORD || type > EXTENT_RECORD) {
+                    return records;
+                }
+                long tid = in.readLong();
+                int len = in.readInt();
+                if (len < 0 || len > SEGMENT_SIZE) {
+                    return records;
+                }
+                if (bytes.length < HEADER_SIZE + len) {
+                    bytes = new byte[HEADER_SIZE + len];
+                }
+                ByteBuffer.wrap(bytes).put((byte) type).putLong(tid).putInt(len);
+                in.readFully(bytes, HEADER_SIZE, len);
+                crc.reset();
+                crc.update(bytes, 0, HEADER_SIZE + len);
+                // a mismatch is a torn record, or a record left over from
+                // the previous life of a recycled segment
+                if (in.readInt() != (int) crc.getValue() || in.readLong() != offset || counter.position > end) {
+                    return records;
+                }
+                PageId pid = null;
+                if (isUpdate(type) || type == EXTENT_RECORD) {
+                    // the body starts with the page reference
+                    ByteBuffer body = ByteBuffer.wrap(bytes, HEADER_SIZE, len);
+                    pid = PageRegistry.createId(body.get() & 0xff, body.getInt(), body.getInt());
+                }
+                records.add(new LogRecord(type, tid, offset, counter.position, pid));
+            } catch (IOException e) {
+                // a record cut short by a crash ends the log
+                return records;
+            }
+        }
+        return records;
+    }
+
+    // read a whole record with positional reads; safe to call from several
+    // threads at once
+    private byte[] readRecordBytes(LogRecord r) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) (r.end - r.offset));
+        readFully(buf, r.offset);
+        return buf.array();
+    }
+
+    /** The decoded body of an UPDATE or SLOT record */
+    private class PageUpdate {
+        final Page before; // full images of an UPDATE record
+        final Page after;
+        final SlotDelta delta; // change recorded by a SLOT record
+
+        PageUpdate(LogRecord r) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecordBytes(r)));
+            skipFully(in, HEADER_SIZE);
+            if (r.type == SLOT_RECORD) {
+                readPageId(in);
+                before = null;
+                after = null;
+                delta = SlotDelta.deserialize(in);
+            } else {
+                PageImage beforeImage = readPageImage(in, null);
+                before = beforeImage.toPage();
+                after = readPageImage(in, beforeImage.data).toPage();
+                delta = null;
+            }
+        }
+
+        Page redo(Page page) throws IOException {
+            return delta == null ? after : delta.redo((SlottedPage) page);
+        }
+
+        Page undo(Page page) throws IOException {
+            return delta == null ? before : delta.undo((SlottedPage) page);
+        }
+    }
+
+    // a page past the end of the file was cut off by HeapFile.vacuum after
+    // its records were written; vacuum only cuts empty pages, so it is
+    // rebuilt as one and written back with the rest
+    private static Page readCurrentPage(PageId pid) throws IOException {
+        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        if (page == null) {
+            page = PageRegistry.createPage(PageRegistry.typeOf(pid), pid, new byte[BufferPool.getPageSize()]);
+        }
+        return page;
+    }
+
+    // group UPDATE and SLOT records by page, keeping log order within a page
+    private static Map<PageId, List<LogRecord>> byPage(List<LogRecord> updates) {
+        Map<PageId, List<LogRecord>> pages = new LinkedHashMap<>();
+        for (LogRecord r : updates) {
+            pages.computeIfAbsent(r.pid, k -> new ArrayList<>()).add(r);
+        }
+        return pages;
+    }
+
+    /**
+     * Redo the given UPDATE and SLOT records.  Records are partitioned by
+     * page across REDO_THREADS workers, so that all records of a page are
+     * replayed in log order by a single worker.  Replay of a page starts
+     * from the after image of its last full image record, or from the page
+     * on disk if it only has slot records.
+     */
+    private void redo(List<LogRecord> updates) throws IOException {
+        Map<PageId, List<LogRecord>> pages = byPage(updates);
+        if (pages.isEmpty()) {
+            return;
+        }
+
+        int numWorkers = Math.min(REDO_THREADS, pages.size());
+        List<List<List<LogRecord>>> partitions = new ArrayList<>();
+        for (int i = 0; i < numWorkers; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, List<LogRecord>> e : pages.entrySet()) {
+            partitions.get(Math.floorMod(e.getKey().hashCode(), numWorkers)).add(e.getValue());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (List<List<LogRecord>> partition : partitions) {
+                results.add(workers.submit(() -> {
+                    for (List<LogRecord> records : partition) {
+                        redoPage(records);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during redo", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            workers.shutdown();
+        }
+        for (PageId pid : pages.keySet()) {
+            Database.getBufferPool().removePage(pid);
+        }
+    }
+
+    private void redoPage(List<LogRecord> records) throws IOException {
+        int first = 0;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            if (records.get(i).type == UPDATE_RECORD) {
+                first = i;
+                break;
+            }
+        }
+        PageId pid = records.get(first).pid;
+        Page page = records.get(first).type == UPDATE_RECORD ? null : readCurrentPage(pid);
+        for (LogRecord r : records.subList(first, records.size())) {
+            page = new PageUpdate(r).redo(page);
+        }
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+    }
+
+    /**
+     * Undo the given UPDATE, SLOT and EXTENT records (in log order), page
+     * by page and in reverse log order within a page.  The restored pages
+     * are logged as compensation records.  With inPlace, a restored page that
+     * is in the buffer pool replaces the cached one and is written back
+     * later like any committed change; any other page is written back once
+     * the log has been forced.
+     */
+    private void undo(List<LogRecord> records, boolean inPlace) throws IOException {
+        List<LogRecord> updates = new ArrayList<>();
+        List<LogRecord> extents = new ArrayList<>();
+        for (LogRecord r : records) {
+            (r.type == EXTENT_RECORD ? extents : updates).add(r);
+        }
+        restorePages(updates, inPlace);
+        // the updates may have been made to pages of an extent, so extents
+        // are emptied last
+        for (LogRecord r : extents) {
+            undoExtent(r);
+        }
+    }
+
+    private void restorePages(List<LogRecord> updates, boolean inPlace) throws IOException {
+        Map<PageId, PageRestore> restore = new LinkedHashMap<>();
+        for (Map.Entry<PageId, List<LogRecord>> e : byPage(updates).entrySet()) {
+            List<LogRecord> records = e.getValue();
+            // undo starts from the page as of its last record: the before
+            // image of a cached page (which may hold unlogged changes on
+            // top of it), or else the page on disk, which every page leaving
+            // the buffer pool is written back to
+            Page cached = Database.getBufferPool().getCachedPage(e.getKey());
+            Page current = cached != null ? cached.getBeforeImage() : readCurrentPage(e.getKey());
+            Page page = current;
+            for (int i = records.size() - 1; i >= 0; i--) {
+                page = new PageUpdate(records.get(i)).undo(page);
             }
+            restore.put(e.getKey(), new PageRestore(records.get(records.size() - 1).tid, current, page));
+        }
+        if (restore.isEmpty()) {
+            return;
+        }
+
+        BufferPool pool = Database.getBufferPool();
+        Map<PageId, PageRestore> toWrite = new LinkedHashMap<>();
+        for (Map.Entry<PageId, PageRestore> e : restore.entrySet()) {
+            PageRestore entry = e.getValue();
+            if (inPlace && pool.getCachedPage(e.getKey()) != null) {
+                pool.noteDirty(e.getKey());
+                appendUpdate(entry.tid, entry.undone, entry.restored);
+                pool.replaceCachedPage(entry.restored);
+            } else {
+                appendUpdate(entry.tid, entry.undone, entry.restored);
+                toWrite.put(e.getKey(), entry);
+            }
+        }
+        if (toWrite.isEmpty()) {
+            return;
+        }
+        force();
+        for (Map.Entry<PageId, PageRestore> e : toWrite.entrySet()) {
+            Database.getCatalog().getDatabaseFile(e.getKey().getTableId()).writePage(e.getValue().restored);
+            pool.removePage(e.getKey());
+        }
+    }
+
+    // empty the pages of an EXTENT record; they were never logged, so there
+    // is no compensation record either: emptying them again is harmless
+    private void undoExtent(LogRecord r) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(readRecordBytes(r)));
+        skipFully(in, HEADER_SIZE);
+        PageId first = readPageId(in);
+        int numPages = in.readInt();
+        int type = PageRegistry.typeOf(first);
+        DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+        for (int i = 0; i < numPages; i++) {
+            PageId pid = PageRegistry.createId(type, first.getTableId(), first.getPageNumber() + i);
+            file.writePage(PageRegistry.createPage(type, pid, new byte[BufferPool.getPageSize()]));
+            Database.getBufferPool().removePage(pid);
         }
     }
 
     /**
      * Print out a human readable represenation of the log
      */
-    public void print() throws IOException {
-        // TODO: some code goes here
+    public synchronized void print() throws IOException {
+        if (currentOffset >= 0) {
+            writeBuffer();
+        }
+        long[] control = readControl();
+        System.out.println("checkpoint at " + control[0]);
+        String[] names = {"?", "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "SLOT", "EXTENT"};
+        for (LogRecord r : scanLog(control[1], currentOffset >= 0 ? currentOffset : Long.MAX_VALUE)) {
+            System.out.println(r.offset + ": " + names[r.type] + " tid " + r.tid
+                    + (r.pid != null ? " page " + r.pid.getTableId() + ":" + r.pid.getPageNumber() : ""));
+        }
     }
 
-    public synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /**
+     * Force every log record appended so far to disk.
+     */
+    public void force() throws IOException {
+        long lsn;
+        synchronized (this) {
+            if (currentOffset < 0) {
+                return; // nothing appended yet
+            }
+            lsn = currentOffset - 1;
+        }
+        force(lsn);
+    }
+
+    /**
+     * Block until the log record with the specified LSN, and every record
+     * before it, is durable.  Concurrent callers are batched onto a single
+     * fsync: if no force is running the caller becomes the leader and
+     * forces everything written so far on behalf of all waiters, otherwise
+     * it waits for the running force and re-checks.
+     *
+     * @param lsn the LSN of a record returned by one of the log methods
+     */
+    public void force(long lsn) throws IOException {
+        // records are written out whole, so a durable prefix that goes past
+        // the first byte of a record covers all of it
+        long target = lsn + 1;
+        if (writtenLsn < target) {
+            synchronized (this) {
+                if (writtenLsn < target) {
+                    writeBuffer();
+                }
+                // never wait for bytes that were not appended
+                target = Math.min(target, writtenLsn);
+            }
+        }
+
+        long from;
+        long upTo;
+        synchronized (forceLock) {
+            while (true) {
+                if (durableLsn >= target) {
+                    return;
+                }
+                if (!forceInProgress) {
+                    break;
+                }
+                try {
+                    forceLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while forcing log", e);
+                }
+            }
+            forceInProgress = true;
+            // every byte up to here has already been handed to the OS
+            from = durableLsn;
+            upTo = writtenLsn;
+        }
+
+        boolean forced = false;
+        try {
+            // the segments are preallocated, so their data is all there is
+            // to flush
+            for (long segNo = from / SEGMENT_SIZE; segNo <= (upTo - 1) / SEGMENT_SIZE; segNo++) {
+                FileChannel channel = segment(segNo, false);
+                if (channel != null) {
+                    channel.force(false);
+                }
+            }
+            forced = true;
+        } finally {
+            synchronized (forceLock) {
+                if (forced && upTo > durableLsn) {
+                    durableLsn = upTo;
+                }
+                forceInProgress = false;
+                forceLock.notifyAll();
+            }
+        }
     }
 
 }
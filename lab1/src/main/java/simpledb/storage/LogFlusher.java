@@ -0,0 +1,80 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * Background thread that makes async commits durable.  A transaction that
+ * commits asynchronously does not wait for the log to be forced; this
+ * thread forces the log up to the last async commit record every
+ * {@link #INTERVAL_MS} milliseconds, which bounds how much committed work
+ * a crash can lose.  Synchronous commits force the log themselves, and
+ * since the log is forced in order they also make every async commit
+ * before them durable.
+ * <p>
+ * Each log file starts a flusher of its own, which lives until the log is
+ * shut down or replaced, see {@link LogFile#stopFlusher}.
+ */
+public class LogFlusher extends Thread {
+
+    /** Time between two forces of the flusher */
+    public static final long INTERVAL_MS = 10;
+
+    private final LogFile log;
+    private final Object sleepLock = new Object();
+    private boolean stopped; // protected by sleepLock
+
+    LogFlusher(LogFile log) {
+        super("log-flusher");
+        this.log = log;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop the flusher and wait for it to make the async commits so far
+     * durable one last time.  The thread is not interrupted, which would
+     * close the log segment it may be forcing.
+     */
+    void shutdown() {
+        synchronized (sleepLock) {
+            stopped = true;
+            sleepLock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean last;
+            synchronized (sleepLock) {
+                if (!stopped) {
+                    try {
+                        sleepLock.wait(INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                last = stopped;
+            }
+            try {
+                log.flushAsyncCommits();
+            } catch (IOException | RuntimeException e) {
+                // try again next round
+                e.printStackTrace();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+}
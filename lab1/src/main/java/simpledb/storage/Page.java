@@ -2,6 +2,8 @@ package simpledb.storage;
 
 import simpledb.transaction.TransactionId;
 
+import java.util.concurrent.locks.ReadWriteLock;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -59,4 +61,15 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the latch guarding the in-memory contents of this page.
+     * <p>
+     * A latch is a short-term reader/writer lock that is held only while the
+     * page is physically read (e.g. serialized) or modified, and is
+     * independent of the transactional locks granted by the LockManager.
+     * Transactions that hold compatible page locks can therefore work on the
+     * same page in parallel without seeing a half-updated image.
+     */
+    ReadWriteLock getLatch();
 }
@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes the full page images that the log writes in UPDATE records.  An
+ * image can be encoded against a reference image of the same page (the
+ * before image, for an after image), which the decoder is given back.
+ * <p>
+ * Every encoded image is tagged in the log with the id of its codec, so
+ * changing the codec of a log (see {@link LogFile#setImageCodec}) does not
+ * affect records already written.  Codecs other than the built-in ones
+ * must be registered before the log is read.
+ */
+public abstract class PageImageCodec {
+
+    /** Id of {@link RawImageCodec} */
+    public static final int RAW = 0;
+    /** Id of {@link XorRleImageCodec} */
+    public static final int XOR_RLE = 1;
+
+    private static final Map<Integer, PageImageCodec> byId = new ConcurrentHashMap<>();
+
+    static {
+        register(new RawImageCodec());
+        register(new XorRleImageCodec());
+    }
+
+    /**
+     * @return the id this codec is logged under, between 0 and 127
+     */
+    public abstract int getId();
+
+    /**
+     * Encode a page image.
+     *
+     * @param image the image to encode
+     * @param reference an image of the same page to encode against, or null
+     */
+    public abstract byte[] encode(byte[] image, byte[] reference);
+
+    /**
+     * Decode a page image.
+     *
+     * @param encoded the output of {@link #encode}
+     * @param reference the reference image given to encode, or null
+     * @throws IOException if the encoded image is garbled
+     */
+    public abstract byte[] decode(byte[] encoded, byte[] reference) throws IOException;
+
+    /**
+     * Register a codec, so that the images it encoded can be decoded.
+     */
+    public static void register(PageImageCodec codec) {
+        byId.put(codec.getId(), codec);
+    }
+
+    /**
+     * @return the codec registered under the specified id
+     * @throws IOException if there is none
+     */
+    public static PageImageCodec forId(int id) throws IOException {
+        PageImageCodec codec = byId.get(id);
+        if (codec == null) {
+            throw new IOException("unknown page image codec " + id);
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,234 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeHeaderPage;
+import simpledb.index.BTreeInternalPage;
+import simpledb.index.BTreeLeafPage;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Registry of the kinds of pages that can appear in the log.  Each kind has
+ * a small numeric type id, which the log writes instead of class names, and
+ * factories that rebuild its page ids and pages without reflection.
+ * <p>
+ * The built-in page classes are registered here; a new kind of page must
+ * {@link #register} itself under an unused id before it is logged.
+ */
+public class PageRegistry {
+
+    public static final int HEAP_PAGE = 1;
+    public static final int BTREE_ROOT_PTR_PAGE = 2;
+    public static final int BTREE_INTERNAL_PAGE = 3;
+    public static final int BTREE_LEAF_PAGE = 4;
+    public static final int BTREE_HEADER_PAGE = 5;
+    public static final int VARLEN_HEAP_PAGE = 6;
+    public static final int PAX_PAGE = 7;
+    public static final int COMPRESSED_HEAP_PAGE = 8;
+
+    /** Rebuilds the id of a page from its table id and page number */
+    public interface IdFactory {
+        PageId create(int tableId, int pageNo);
+    }
+
+    /** Rebuilds a page from its id and page image */
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    /** Builds a page that reads its image in place from a buffer */
+    public interface BufferFactory {
+        Page create(PageId pid, ByteBuffer data) throws IOException;
+    }
+
+    private static class Entry {
+        final int typeId;
+        final Predicate<PageId> ownsId;
+        final IdFactory ids;
+        final PageFactory pages;
+        final BufferFactory buffers;
+
+        Entry(int typeId, Predicate<PageId> ownsId, IdFactory ids, PageFactory pages, BufferFactory buffers) {
+            this.typeId = typeId;
+            this.ownsId = ownsId;
+            this.ids = ids;
+            this.pages = pages;
+            this.buffers = buffers;
+        }
+    }
+
+    private static final Map<Integer, Entry> byType = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Entry> byClass = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class,
+                pid -> isHeap(pid, HEAP_PAGE),
+                HeapPageId::new,
+                (pid, data) -> new HeapPage((HeapPageId) pid, data),
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class,
+                pid -> isBTree(pid, BTreePageId.ROOT_PTR),
+                (tableId, pageNo) -> new BTreePageId(tableId, pageNo, BTreePageId.ROOT_PTR),
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class,
+                pid -> isBTree(pid, BTreePageId.INTERNAL),
+                (tableId, pageNo) -> new BTreePageId(tableId, pageNo, BTreePageId.INTERNAL),
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class,
+                pid -> isBTree(pid, BTreePageId.LEAF),
+                (tableId, pageNo) -> new BTreePageId(tableId, pageNo, BTreePageId.LEAF),
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class,
+                pid -> isBTree(pid, BTreePageId.HEADER),
+                (tableId, pageNo) -> new BTreePageId(tableId, pageNo, BTreePageId.HEADER),
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        register(VARLEN_HEAP_PAGE, VarLenHeapPage.class,
+                pid -> isHeap(pid, VARLEN_HEAP_PAGE),
+                HeapPageId::new,
+                (pid, data) -> new VarLenHeapPage((HeapPageId) pid, data));
+        register(PAX_PAGE, PaxPage.class,
+                pid -> isHeap(pid, PAX_PAGE),
+                HeapPageId::new,
+                (pid, data) -> new PaxPage((HeapPageId) pid, data));
+        register(COMPRESSED_HEAP_PAGE, CompressedHeapPage.class,
+                pid -> isHeap(pid, COMPRESSED_HEAP_PAGE),
+                HeapPageId::new,
+                (pid, data) -> new CompressedHeapPage((HeapPageId) pid, data));
+    }
+
+    // 堆文件的页用哪种页由文件决定，不在catalog里的按HeapPage算
+    private static boolean isHeap(PageId pid, int pageType) {
+        if (!(pid instanceof HeapPageId)) {
+            return false;
+        }
+        int fileType = HEAP_PAGE;
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (file instanceof HeapFile) {
+                fileType = ((HeapFile) file).getPageType();
+            }
+        } catch (NoSuchElementException e) {
+            // not a table (yet)
+        }
+        return fileType == pageType;
+    }
+
+    private static boolean isBTree(PageId pid, int pgcateg) {
+        return pid instanceof BTreePageId && ((BTreePageId) pid).pgcateg() == pgcateg;
+    }
+
+    // B+ tree pages are keyed on the key field of the file they belong to
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /**
+     * Register a kind of page.
+     *
+     * @param typeId the type id to log it under, between 1 and 127
+     * @param pageClass the class of its pages
+     * @param ownsId tells whether a page id is the id of such a page
+     * @param ids rebuilds its page ids
+     * @param pages rebuilds its pages
+     * @throws IllegalArgumentException if the type id is out of range or taken
+     */
+    public static void register(int typeId, Class<? extends Page> pageClass,
+                                Predicate<PageId> ownsId, IdFactory ids, PageFactory pages) {
+        register(typeId, pageClass, ownsId, ids, pages, null);
+    }
+
+    /**
+     * Register a kind of page whose pages can also be built from a buffer
+     * without copying it, see {@link #createPage(int, PageId, ByteBuffer)}.
+     *
+     * @param buffers builds its pages from a buffer, or null to copy the
+     *                buffer and use pages
+     * @see #register(int, Class, Predicate, IdFactory, PageFactory)
+     */
+    public static synchronized void register(int typeId, Class<? extends Page> pageClass,
+                                             Predicate<PageId> ownsId, IdFactory ids, PageFactory pages,
+                                             BufferFactory buffers) {
+        if (typeId < 1 || typeId > Byte.MAX_VALUE || byType.containsKey(typeId)) {
+            throw new IllegalArgumentException("bad or duplicate page type id " + typeId);
+        }
+        Entry e = new Entry(typeId, ownsId, ids, pages, buffers);
+        byType.put(typeId, e);
+        byClass.put(pageClass, e);
+    }
+
+    /**
+     * @return the type id of the specified page
+     * @throws IllegalArgumentException if its class is not registered
+     */
+    public static int typeOf(Page page) {
+        Entry e = byClass.get(page.getClass());
+        if (e == null) {
+            throw new IllegalArgumentException("unregistered page class " + page.getClass().getName());
+        }
+        return e.typeId;
+    }
+
+    /**
+     * @return the type id of the pages with the specified id
+     * @throws IllegalArgumentException if no registered kind of page owns it
+     */
+    public static int typeOf(PageId pid) {
+        for (Entry e : byType.values()) {
+            if (e.ownsId.test(pid)) {
+                return e.typeId;
+            }
+        }
+        throw new IllegalArgumentException("unregistered page id " + pid);
+    }
+
+    private static Entry entry(int typeId) throws IOException {
+        Entry e = byType.get(typeId);
+        if (e == null) {
+            throw new IOException("unknown page type " + typeId);
+        }
+        return e;
+    }
+
+    /**
+     * Rebuild a page id.
+     *
+     * @throws IOException if the type id is not registered
+     */
+    public static PageId createId(int typeId, int tableId, int pageNo) throws IOException {
+        return entry(typeId).ids.create(tableId, pageNo);
+    }
+
+    /**
+     * Rebuild a page from its image.
+     *
+     * @throws IOException if the type id is not registered
+     */
+    public static Page createPage(int typeId, PageId pid, byte[] data) throws IOException {
+        return entry(typeId).pages.create(pid, data);
+    }
+
+    /**
+     * Build a page from a buffer holding its image from its position on,
+     * such as a slice of a mapped file.  Kinds of pages registered with a
+     * {@link BufferFactory} read the buffer in place, the others get a copy.
+     *
+     * @throws IOException if the type id is not registered
+     */
+    public static Page createPage(int typeId, PageId pid, ByteBuffer data) throws IOException {
+        Entry e = entry(typeId);
+        if (e.buffers != null) {
+            return e.buffers.create(pid, data);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return e.pages.create(pid, bytes);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * Background thread that writes back the pages of the buffer pool's dirty
+ * page table a few at a time, oldest first.  Checkpoints do not write any
+ * pages themselves; keeping the dirty page table short is what bounds the
+ * amount of log that recovery has to redo.
+ * <p>
+ * Each buffer pool starts a writer of its own, which lives until the pool
+ * is replaced, see {@link BufferPool#stopWriter}.
+ */
+class PageWriter extends Thread {
+
+    /** Time between two rounds of the writer */
+    static final long INTERVAL_MS = 100;
+
+    /** Maximum number of pages written back in one round */
+    static final int BATCH_PAGES = 16;
+
+    private final BufferPool pool;
+    private final Object sleepLock = new Object();
+    private boolean stopped; // protected by sleepLock
+
+    PageWriter(BufferPool pool) {
+        super("page-writer");
+        this.pool = pool;
+        setDaemon(true);
+    }
+
+    /**
+     * Stop the writer and wait for the round it may be in to finish.  The
+     * thread is not interrupted, which would close the file channel it
+     * may be writing to.
+     */
+    void shutdown() {
+        synchronized (sleepLock) {
+            stopped = true;
+            sleepLock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                synchronized (sleepLock) {
+                    if (!stopped) {
+                        sleepLock.wait(INTERVAL_MS);
+                    }
+                    if (stopped) {
+                        return;
+                    }
+                }
+                pool.writeBackDirtyPages(BATCH_PAGES);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // try again next round
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package simpledb.storage;
+
+import java.io.File;
+
+/**
+ * A heap file whose pages store each column apart, in the PAX layout of
+ * {@link PaxPage}.  Tuples are added, removed and scanned as in any heap
+ * file, but a scan of some of the columns only decodes those, see
+ * {@link PaxPage#iterator(int[], TupleDesc, simpledb.execution.Predicate)},
+ * which pays off for scans of a few columns of wide tables.
+ *
+ * @see simpledb.execution.SeqScan#SeqScan(simpledb.transaction.TransactionId, int, String, int[])
+ */
+public class PaxFile extends HeapFile {
+
+    /**
+     * Constructs a PAX file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file.
+     */
+    public PaxFile(File f, TupleDesc td) {
+        super(f, td, PageRegistry.PAX_PAGE);
+    }
+}
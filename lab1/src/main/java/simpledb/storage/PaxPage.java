@@ -0,0 +1,404 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Predicate;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A page of a {@link PaxFile}, which holds as many tuples as a
+ * {@link HeapPage} but stores them column by column (the PAX layout): after
+ * the header bitmap of used slots comes one minipage per column, holding
+ * the values of that column for every slot back to back.  A scan that only
+ * needs some of the columns, see {@link #iterator(int[], TupleDesc)}, reads and decodes
+ * only their minipages.
+ * <p>
+ * The slot of a tuple is spread over the minipages, see
+ * {@link #getSlotRanges}; the bytes of an empty slot are zeroes.
+ */
+public class PaxPage implements SlottedPage, HeapFilePage {
+    final HeapPageId pid;
+    final TupleDesc td;
+    final int numSlots;
+    final int headerSize;
+    //页数据：header之后每列一个minipage，插入删除时就地修改
+    private final byte[] image;
+    //每列minipage的起始位置
+    private final int[] columnStarts;
+    //已解码的完整tuple，null表示空slot或者还没解码
+    private final Tuple[] tuples;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+    //页内存latch，只在读写image/tuples时短暂持有，与事务锁无关
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
+    private boolean dirty;
+    private TransactionId transactionId;
+
+    /**
+     * Create a page from its image.
+     */
+    public PaxPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (numSlots + 7) / 8;
+        if (data.length < headerSize) {
+            throw new EOFException("page " + id + " is too short");
+        }
+        image = Arrays.copyOf(data, BufferPool.getPageSize());
+        columnStarts = new int[td.numFields()];
+        int start = headerSize;
+        for (int j = 0; j < columnStarts.length; j++) {
+            columnStarts[j] = start;
+            start += numSlots * td.getFieldType(j).getLen();
+        }
+        tuples = new Tuple[numSlots];
+
+        // empty slots and padding are all zeroes in the image
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i)) {
+                clearSlot(i);
+            }
+        }
+        Arrays.fill(image, start, image.length, (byte) 0);
+
+        setBeforeImage();
+    }
+
+    // 第slot个tuple的第j列的值在页中的位置
+    private int valueOffset(int slot, int j) {
+        return columnStarts[j] + slot * td.getFieldType(j).getLen();
+    }
+
+    private void clearSlot(int slot) {
+        for (int j = 0; j < columnStarts.length; j++) {
+            int offset = valueOffset(slot, j);
+            Arrays.fill(image, offset, offset + td.getFieldType(j).getLen(), (byte) 0);
+        }
+    }
+
+    private Field decodeField(int slot, int j) {
+        try {
+            return td.getFieldType(j).parse(ByteBuffer.wrap(image, valueOffset(slot, j), td.getFieldType(j).getLen()));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /** Return a view of this page before it was modified
+     -- used by recovery */
+    public PaxPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new PaxPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        byte[] data = getPageData();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return image.clone();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the tuple in the specified slot, decoding it on first use.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        latch.readLock().lock();
+        try {
+            if (!isSlotUsed(slot)) {
+                return null;
+            }
+            synchronized (tuples) {
+                if (tuples[slot] == null) {
+                    Tuple t = new Tuple(td);
+                    t.setRecordId(new RecordId(pid, slot));
+                    for (int j = 0; j < td.numFields(); j++) {
+                        t.setField(j, decodeField(slot, j));
+                    }
+                    tuples[slot] = t;
+                }
+                return tuples[slot];
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return the specified columns of the tuple in the specified slot, as a
+     * new tuple whose TupleDesc has just those columns.  Only their values
+     * are decoded.
+     *
+     * @param columns the indexes of the columns to return, in order
+     * @param projected the TupleDesc of the result
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getColumns(int slot, int[] columns, TupleDesc projected) {
+        latch.readLock().lock();
+        try {
+            if (!isSlotUsed(slot)) {
+                return null;
+            }
+            Tuple t = new Tuple(projected);
+            t.setRecordId(new RecordId(pid, slot));
+            for (int k = 0; k < columns.length; k++) {
+                t.setField(k, decodeField(slot, columns[k]));
+            }
+            return t;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (!t.getTupleDesc().equals(td)) {
+                throw new DbException("insert tuple err");
+            }
+            int slot = 0;
+            while (slot < numSlots && isSlotUsed(slot)) {
+                slot++;
+            }
+            if (slot == numSlots) {
+                throw new DbException("page is full");
+            }
+            for (int j = 0; j < td.numFields(); j++) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getFieldType(j).getLen());
+                try {
+                    t.getField(j).serialize(new DataOutputStream(baos));
+                } catch (IOException e) {
+                    // this really shouldn't happen
+                    e.printStackTrace();
+                }
+                System.arraycopy(baos.toByteArray(), 0, image, valueOffset(slot, j), td.getFieldType(j).getLen());
+            }
+            markSlotUsed(slot, true);
+            t.setRecordId(new RecordId(pid, slot));
+            synchronized (tuples) {
+                tuples[slot] = t;
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            int slot = t.getRecordId().getTupleNumber();
+            if (!isSlotUsed(slot) || !t.equals(tuples[slot])) {
+                throw new DbException("tuple is not in tuples");
+            }
+            markSlotUsed(slot, false);
+            clearSlot(slot);
+            synchronized (tuples) {
+                tuples[slot] = null;
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    public int getNumUnusedSlots() {
+        latch.readLock().lock();
+        try {
+            int count = 0;
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i)) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public boolean isSlotUsed(int i) {
+        return ((image[i / 8] >> (i % 8)) & 1) == 1;
+    }
+
+    private void markSlotUsed(int i, boolean value) {
+        if (value) {
+            image[i / 8] |= (byte) (1 << (i % 8));
+        } else {
+            image[i / 8] &= (byte) ~(1 << (i % 8));
+        }
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * 第i个tuple分散在各列的minipage里，每列一段
+     */
+    public int[] getSlotRanges(int i) {
+        int[] ranges = new int[2 * columnStarts.length];
+        for (int j = 0; j < columnStarts.length; j++) {
+            ranges[2 * j] = valueOffset(i, j);
+            ranges[2 * j + 1] = td.getFieldType(j).getLen();
+        }
+        return ranges;
+    }
+
+    public PaxPage newInstance(byte[] data) throws IOException {
+        return new PaxPage(pid, data);
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.transactionId = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? transactionId : null;
+    }
+
+    // 先记下现在有哪些slot有tuple，迭代到时才解码
+    private Iterator<Integer> usedSlots() {
+        List<Integer> used = new ArrayList<>();
+        latch.readLock().lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    used.add(i);
+                }
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+        return used.iterator();
+    }
+
+    /**
+     * @return an iterator over the tuples on this page, decoded as they are
+     *         returned; tuples deleted meanwhile are skipped
+     */
+    public Iterator<Tuple> iterator() {
+        return new SlotIterator(usedSlots()) {
+            Tuple read(int slot) {
+                return getTuple(slot);
+            }
+        };
+    }
+
+    /**
+     * Return an iterator over the specified columns of the tuples on this
+     * page, which decodes nothing but those columns.
+     *
+     * @param columns the indexes of the columns to return, in order
+     * @param projected the TupleDesc of the returned tuples, with the types
+     *                  of those columns
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected) {
+        return new SlotIterator(usedSlots()) {
+            Tuple read(int slot) {
+                return getColumns(slot, columns, projected);
+            }
+        };
+    }
+
+    /**
+     * Return an iterator over the tuples on this page that pass the
+     * specified predicate, with just the specified columns.  Only the column
+     * the predicate checks is decoded for the tuples that do not pass.
+     *
+     * @see HeapFilePage#iterator(int[], TupleDesc, Predicate)
+     */
+    public Iterator<Tuple> iterator(int[] columns, TupleDesc projected, Predicate predicate) {
+        return new SlotIterator(usedSlots()) {
+            Tuple read(int slot) {
+                if (predicate != null && !passes(slot, predicate)) {
+                    return null;
+                }
+                return columns == null ? getTuple(slot) : getColumns(slot, columns, projected);
+            }
+        };
+    }
+
+    // 只解码谓词用到的那一列
+    private boolean passes(int slot, Predicate predicate) {
+        latch.readLock().lock();
+        try {
+            return isSlotUsed(slot)
+                    && decodeField(slot, predicate.getField()).compare(predicate.getOp(), predicate.getOperand());
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    private abstract static class SlotIterator implements Iterator<Tuple> {
+        private final Iterator<Integer> slots;
+        private Tuple next;
+
+        SlotIterator(Iterator<Integer> slots) {
+            this.slots = slots;
+        }
+
+        abstract Tuple read(int slot);
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && slots.hasNext()) {
+                next = read(slots.next());
+            }
+            return next != null;
+        }
+
+        @Override
+        public Tuple next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = next;
+            next = null;
+            return t;
+        }
+    }
+}
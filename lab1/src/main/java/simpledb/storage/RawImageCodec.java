@@ -0,0 +1,22 @@
+package simpledb.storage;
+
+/**
+ * Logs page images as they are.
+ */
+public class RawImageCodec extends PageImageCodec {
+
+    @Override
+    public int getId() {
+        return RAW;
+    }
+
+    @Override
+    public byte[] encode(byte[] image, byte[] reference) {
+        return image;
+    }
+
+    @Override
+    public byte[] decode(byte[] encoded, byte[] reference) {
+        return encoded;
+    }
+}
@@ -0,0 +1,221 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The difference between two images of a {@link SlottedPage} at slot
+ * granularity: the slots that were inserted, deleted or updated, plus runs of
+ * changed metadata bytes (header bitmap, pointers) outside of any slot.
+ * <p>
+ * Every entry carries absolute byte values rather than an operation to
+ * re-execute, so applying a delta is idempotent: replaying a sequence of
+ * deltas in log order gives the same page whatever intermediate image of the
+ * sequence the page started from, which is what redo after a crash needs.
+ * Undo applies the before values in reverse order.  An inserted slot only
+ * carries its new bytes and a deleted one only its old bytes, since empty
+ * slots are all zeroes.
+ */
+public class SlotDelta {
+
+    static final byte SLOT_INSERT = 1;
+    static final byte SLOT_DELETE = 2;
+    static final byte SLOT_UPDATE = 3;
+    static final byte BYTE_RUN = 4;
+
+    private static class Entry {
+        final byte kind;
+        final int position; // slot number, or byte offset of a BYTE_RUN
+        final byte[] before; // null for an inserted slot
+        final byte[] after; // null for a deleted slot
+
+        Entry(byte kind, int position, byte[] before, byte[] after) {
+            this.kind = kind;
+            this.position = position;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private SlotDelta(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Compute the delta that turns one image of a page into another.  Both
+     * pages must be of the same kind and have the same id.
+     *
+     * @param before the old image of the page
+     * @param after the new image of the page
+     */
+    public static SlotDelta compute(SlottedPage before, SlottedPage after) {
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        boolean[] inSlot = new boolean[a.length];
+        List<Entry> entries = new ArrayList<>();
+
+        for (int i = 0; i < after.getNumSlots(); i++) {
+            int[] ranges = after.getSlotRanges(i);
+            boolean changed = false;
+            for (int r = 0; r < ranges.length; r += 2) {
+                for (int j = ranges[r]; j < ranges[r] + ranges[r + 1]; j++) {
+                    inSlot[j] = true;
+                    changed |= b[j] != a[j];
+                }
+            }
+            if (!changed) {
+                continue;
+            }
+            boolean usedBefore = before.isSlotUsed(i);
+            boolean usedAfter = after.isSlotUsed(i);
+            if (!usedBefore && usedAfter) {
+                entries.add(new Entry(SLOT_INSERT, i, null, gather(a, ranges)));
+            } else if (usedBefore && !usedAfter) {
+                entries.add(new Entry(SLOT_DELETE, i, gather(b, ranges), null));
+            } else {
+                entries.add(new Entry(SLOT_UPDATE, i, gather(b, ranges), gather(a, ranges)));
+            }
+        }
+
+        // metadata bytes
+        int j = 0;
+        while (j < a.length) {
+            if (inSlot[j] || b[j] == a[j]) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < a.length && !inSlot[j] && b[j] != a[j]) {
+                j++;
+            }
+            byte[] oldBytes = new byte[j - start];
+            byte[] newBytes = new byte[j - start];
+            System.arraycopy(b, start, oldBytes, 0, oldBytes.length);
+            System.arraycopy(a, start, newBytes, 0, newBytes.length);
+            entries.add(new Entry(BYTE_RUN, start, oldBytes, newBytes));
+        }
+        return new SlotDelta(entries);
+    }
+
+    private static byte[] gather(byte[] data, int[] ranges) {
+        int len = 0;
+        for (int r = 1; r < ranges.length; r += 2) {
+            len += ranges[r];
+        }
+        byte[] bytes = new byte[len];
+        int k = 0;
+        for (int r = 0; r < ranges.length; r += 2) {
+            System.arraycopy(data, ranges[r], bytes, k, ranges[r + 1]);
+            k += ranges[r + 1];
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of slots and metadata byte runs in this delta
+     */
+    public int getNumEntries() {
+        return entries.size();
+    }
+
+    /**
+     * Reapply this delta to a page.
+     *
+     * @return a new page holding the result
+     */
+    public SlottedPage redo(SlottedPage page) throws IOException {
+        return apply(page, true);
+    }
+
+    /**
+     * Roll this delta back on a page.
+     *
+     * @return a new page holding the result
+     */
+    public SlottedPage undo(SlottedPage page) throws IOException {
+        return apply(page, false);
+    }
+
+    private SlottedPage apply(SlottedPage page, boolean redo) throws IOException {
+        byte[] data = page.getPageData();
+        for (Entry e : entries) {
+            byte[] value = redo ? e.after : e.before;
+            if (e.kind == BYTE_RUN) {
+                System.arraycopy(value, 0, data, e.position, value.length);
+                continue;
+            }
+            int[] ranges = page.getSlotRanges(e.position);
+            int k = 0;
+            for (int r = 0; r < ranges.length; r += 2) {
+                if (value == null) {
+                    // the slot is empty on this side of the delta
+                    for (int j = ranges[r]; j < ranges[r] + ranges[r + 1]; j++) {
+                        data[j] = 0;
+                    }
+                } else {
+                    System.arraycopy(value, k, data, ranges[r], ranges[r + 1]);
+                }
+                k += ranges[r + 1];
+            }
+        }
+        return page.newInstance(data);
+    }
+
+    /**
+     * Write this delta out: an entry count, then for each entry its kind, its
+     * position, its length and its old and/or new bytes.
+     */
+    public void serialize(DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+        for (Entry e : entries) {
+            out.writeByte(e.kind);
+            out.writeInt(e.position);
+            out.writeInt(e.before != null ? e.before.length : e.after.length);
+            if (e.before != null) {
+                out.write(e.before);
+            }
+            if (e.after != null) {
+                out.write(e.after);
+            }
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #serialize(DataOutput)}.  A delta can
+     * neither have more entries nor carry longer values than its page has
+     * bytes, which keeps a garbled delta from allocating huge arrays.
+     */
+    public static SlotDelta deserialize(DataInput in) throws IOException {
+        int maxLen = BufferPool.getPageSize();
+        int numEntries = in.readInt();
+        if (numEntries < 0 || numEntries > maxLen) {
+            throw new IOException("bad slot delta");
+        }
+        List<Entry> entries = new ArrayList<>(numEntries);
+        for (int i = 0; i < numEntries; i++) {
+            byte kind = in.readByte();
+            int position = in.readInt();
+            int len = in.readInt();
+            if (kind < SLOT_INSERT || kind > BYTE_RUN || len < 0 || len > maxLen) {
+                throw new IOException("bad slot delta entry");
+            }
+            byte[] before = null;
+            byte[] after = null;
+            if (kind != SLOT_INSERT) {
+                before = new byte[len];
+                in.readFully(before);
+            }
+            if (kind != SLOT_DELETE) {
+                after = new byte[len];
+                in.readFully(after);
+            }
+            entries.add(new Entry(kind, position, before, after));
+        }
+        return new SlotDelta(entries);
+    }
+}
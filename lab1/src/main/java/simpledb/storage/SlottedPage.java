@@ -0,0 +1,41 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * A page whose image (see {@link Page#getPageData()}) is laid out as a fixed
+ * array of slots, each holding one tuple or index entry, plus some bytes of
+ * page metadata (header bitmap, parent and sibling pointers, ...).
+ * <p>
+ * The log uses this layout to record a change to such a page as the slots
+ * that were inserted, deleted or updated rather than as two full page
+ * images.  The bytes of an empty slot must serialize as zeroes.
+ *
+ * @see SlotDelta
+ */
+public interface SlottedPage extends Page {
+
+    /**
+     * @return the number of slots on this page
+     */
+    int getNumSlots();
+
+    /**
+     * @return true if the specified slot holds a tuple or entry
+     */
+    boolean isSlotUsed(int i);
+
+    /**
+     * Return where the specified slot lives in the page image, as a list of
+     * {offset, length} pairs.  Most slots are a single byte range; an entry
+     * of a B+ tree internal page is split between the key and the child
+     * pointer arrays.
+     */
+    int[] getSlotRanges(int i);
+
+    /**
+     * Create a page of the same kind, with the same id, from the specified
+     * page image.
+     */
+    SlottedPage newInstance(byte[] data) throws IOException;
+}
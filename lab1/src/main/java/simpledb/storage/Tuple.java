@@ -104,6 +104,22 @@ public class Tuple implements Serializable {
         return Arrays.asList(fields).iterator();
     }
 
+    /**
+     * Return a new tuple with the specified fields of this one, and the same
+     * RecordId.
+     *
+     * @param columns the indexes of the fields, in order
+     * @param projected the TupleDesc of the new tuple, see {@link TupleDesc#project}
+     */
+    public Tuple project(int[] columns, TupleDesc projected) {
+        Tuple t = new Tuple(projected);
+        t.setRecordId(recordId);
+        for (int i = 0; i < columns.length; i++) {
+            t.setField(i, getField(columns[i]));
+        }
+        return t;
+    }
+
     /**
      * reset the TupleDesc of this tuple (only affecting the TupleDesc)
      */
@@ -182,6 +182,23 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(types,names);
     }
 
+    /**
+     * Return the TupleDesc of the specified fields of this one.
+     *
+     * @param columns the indexes of the fields, in the order of the new TupleDesc
+     * @return the new TupleDesc
+     * @throws NoSuchElementException if an index is not a valid field reference
+     */
+    public TupleDesc project(int[] columns) throws NoSuchElementException {
+        Type[] types = new Type[columns.length];
+        String[] names = new String[columns.length];
+        for(int i = 0; i < columns.length; i++){
+            types[i] = getFieldType(columns[i]);
+            names[i] = getFieldName(columns[i]);
+        }
+        return new TupleDesc(types,names);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
@@ -0,0 +1,405 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A page of a HeapFile whose tuples take only the space they need: strings
+ * are stored without the padding up to {@link Type#STRING_LEN} of the
+ * fixed-size slots of {@link HeapPage}.
+ * <p>
+ * The page starts with a 4 byte header: the number of entries of the slot
+ * directory and the offset where the records start, both unsigned shorts
+ * (an offset of 0 stands for the end of the page).  The slot directory
+ * follows, one entry per slot holding the offset and length of its record
+ * as unsigned shorts; an offset of 0 marks an empty slot.  Records are
+ * packed from the end of the page towards the directory.  In a record, an
+ * int field takes 4 bytes and a string field an unsigned short length
+ * followed by one byte per character.
+ * <p>
+ * A tuple keeps its slot, and so its RecordId, while it is on the page;
+ * records are moved to reclaim the space of deleted ones when an insert
+ * needs it.  A record is never larger than the fixed-size slot of the same
+ * tuple, so every tuple that fits a HeapPage fits here.
+ */
+public class VarLenHeapPage implements HeapFilePage {
+
+    private static final int HEADER_SIZE = 4;
+    private static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    //页数据，插入删除时就地修改，getPageData直接复制
+    private final byte[] image;
+    //已解码的tuple，null表示空slot或者还没解码
+    private Tuple[] tuples;
+    private int numSlots;
+    private int recordStart;
+    //一个tuple编码后最多占多少字节
+    private final int maxRecordSize;
+
+    byte[] oldData;
+    private final Object oldDataLock = new Object();
+    //页内存latch，只在读写image/tuples时短暂持有，与事务锁无关
+    private final ReadWriteLock latch = new ReentrantReadWriteLock();
+    private boolean dirty;
+    private TransactionId transactionId;
+
+    /**
+     * Create a page from its image, in the format described above.
+     *
+     * @throws IOException if the image is not a valid page
+     */
+    public VarLenHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        int pageSize = BufferPool.getPageSize();
+        if (data.length < pageSize) {
+            throw new IOException("page " + id + " is too short");
+        }
+        image = Arrays.copyOf(data, pageSize);
+        numSlots = getShort(0);
+        recordStart = getShort(2) == 0 ? pageSize : getShort(2);
+        if (recordStart < directoryEnd() || recordStart > pageSize) {
+            throw new IOException("bad record area on page " + id);
+        }
+        for (int i = 0; i < numSlots; i++) {
+            int offset = recordOffset(i);
+            if (offset != 0 && (offset < recordStart || offset + recordLength(i) > pageSize)) {
+                throw new IOException("bad slot " + i + " on page " + id);
+            }
+        }
+        tuples = new Tuple[numSlots];
+
+        int max = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            max += td.getFieldType(j) == Type.STRING_TYPE ? 2 + Type.STRING_LEN : td.getFieldType(j).getLen();
+        }
+        maxRecordSize = max;
+
+        setBeforeImage();
+    }
+
+    private int getShort(int offset) {
+        return ((image[offset] & 0xff) << 8) | (image[offset + 1] & 0xff);
+    }
+
+    private void putShort(int offset, int value) {
+        image[offset] = (byte) (value >> 8);
+        image[offset + 1] = (byte) value;
+    }
+
+    private int directoryEnd() {
+        return HEADER_SIZE + numSlots * SLOT_SIZE;
+    }
+
+    private int recordOffset(int slot) {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    private int recordLength(int slot) {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        putShort(HEADER_SIZE + slot * SLOT_SIZE, offset);
+        putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    // 改了numSlots或recordStart后写回页头
+    private void writeHeader() {
+        putShort(0, numSlots);
+        putShort(2, recordStart == image.length ? 0 : recordStart);
+    }
+
+    /** Return a view of this page before it was modified
+     -- used by recovery */
+    public VarLenHeapPage getBeforeImage() {
+        try {
+            byte[] oldDataRef;
+            synchronized (oldDataLock) {
+                oldDataRef = oldData;
+            }
+            return new VarLenHeapPage(pid, oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        byte[] data = getPageData();
+        synchronized (oldDataLock) {
+            oldData = data;
+        }
+    }
+
+    public ReadWriteLock getLatch() {
+        return latch;
+    }
+
+    public HeapPageId getId() {
+        return pid;
+    }
+
+    public byte[] getPageData() {
+        latch.readLock().lock();
+        try {
+            return image.clone();
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    // 解码第slot个tuple
+    private Tuple decodeTuple(int slot) {
+        ByteBuffer buf = ByteBuffer.wrap(image, recordOffset(slot), recordLength(slot));
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slot));
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                if (td.getFieldType(j) == Type.STRING_TYPE) {
+                    byte[] bs = new byte[buf.getShort() & 0xffff];
+                    buf.get(bs);
+                    t.setField(j, new StringField(new String(bs, StandardCharsets.ISO_8859_1), Type.STRING_LEN));
+                } else {
+                    t.setField(j, new IntField(buf.getInt()));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    // 把tuple编码成记录，字符串不补齐
+    private byte[] encodeTuple(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(maxRecordSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                Field f = t.getField(j);
+                if (td.getFieldType(j) == Type.STRING_TYPE) {
+                    String s = ((StringField) f).getValue();
+                    if (s.length() > Type.STRING_LEN) {
+                        s = s.substring(0, Type.STRING_LEN);
+                    }
+                    dos.writeShort(s.length());
+                    dos.writeBytes(s);
+                } else {
+                    f.serialize(dos);
+                }
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Return the tuple in the specified slot, decoding it on first use.
+     *
+     * @return the tuple, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        latch.readLock().lock();
+        try {
+            if (!isSlotUsed(slot)) {
+                return null;
+            }
+            synchronized (this) {
+                if (tuples[slot] == null) {
+                    tuples[slot] = decodeTuple(slot);
+                }
+                return tuples[slot];
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    public void insertTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            if (!t.getTupleDesc().equals(td)) {
+                throw new DbException("insert tuple err");
+            }
+            byte[] record = encodeTuple(t);
+            int slot = 0;
+            while (slot < numSlots && recordOffset(slot) != 0) {
+                slot++;
+            }
+            int needed = record.length + (slot == numSlots ? SLOT_SIZE : 0);
+            if (recordStart - directoryEnd() < needed) {
+                if (getFreeSpace() < needed) {
+                    throw new DbException("page is full");
+                }
+                compact();
+            }
+            if (slot == numSlots) {
+                numSlots++;
+                tuples = Arrays.copyOf(tuples, numSlots);
+            }
+            recordStart -= record.length;
+            System.arraycopy(record, 0, image, recordStart, record.length);
+            setSlot(slot, recordStart, record.length);
+            writeHeader();
+            t.setRecordId(new RecordId(pid, slot));
+            synchronized (this) {
+                tuples[slot] = t;
+            }
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    public void deleteTuple(Tuple t) throws DbException {
+        latch.writeLock().lock();
+        try {
+            int slot = t.getRecordId().getTupleNumber();
+            if (!isSlotUsed(slot) || !t.equals(tuples[slot])) {
+                throw new DbException("tuple is not in tuples");
+            }
+            Arrays.fill(image, recordOffset(slot), recordOffset(slot) + recordLength(slot), (byte) 0);
+            if (recordOffset(slot) == recordStart) {
+                recordStart += recordLength(slot);
+            }
+            setSlot(slot, 0, 0);
+            synchronized (this) {
+                tuples[slot] = null;
+            }
+            //目录末尾的空slot直接去掉
+            if (slot == numSlots - 1) {
+                while (numSlots > 0 && recordOffset(numSlots - 1) == 0) {
+                    numSlots--;
+                }
+                tuples = Arrays.copyOf(tuples, numSlots);
+            }
+            writeHeader();
+        } finally {
+            latch.writeLock().unlock();
+        }
+    }
+
+    // 所有记录重新紧挨着放到页尾，回收删除留下的空洞
+    private void compact() {
+        byte[] records = new byte[image.length];
+        int end = image.length;
+        for (int i = 0; i < numSlots; i++) {
+            int offset = recordOffset(i);
+            if (offset == 0) {
+                continue;
+            }
+            int length = recordLength(i);
+            end -= length;
+            System.arraycopy(image, offset, records, end, length);
+            setSlot(i, end, length);
+        }
+        int dirEnd = directoryEnd();
+        System.arraycopy(records, end, image, end, image.length - end);
+        Arrays.fill(image, dirEnd, end, (byte) 0);
+        recordStart = end;
+        writeHeader();
+    }
+
+    // 整页的空闲字节数（整理后可以连续使用）
+    private int getFreeSpace() {
+        int used = directoryEnd();
+        for (int i = 0; i < numSlots; i++) {
+            used += recordLength(i);
+        }
+        return image.length - used;
+    }
+
+    public int getNumUnusedSlots() {
+        latch.readLock().lock();
+        try {
+            return getFreeSpace() / (maxRecordSize + SLOT_SIZE);
+        } finally {
+            latch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i < numSlots && recordOffset(i) != 0;
+    }
+
+    /**
+     * @return the number of entries of the slot directory
+     */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.dirty = dirty;
+        this.transactionId = tid;
+    }
+
+    public TransactionId isDirty() {
+        return dirty ? transactionId : null;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page, decoded as they are
+     *         returned; tuples deleted meanwhile are skipped
+     */
+    public Iterator<Tuple> iterator() {
+        List<Integer> used = new ArrayList<>();
+        latch.readLock().lock();
+        try {
+            for (int i = 0; i < numSlots; i++) {
+                if (isSlotUsed(i)) {
+                    used.add(i);
+                }
+            }
+        } finally {
+            latch.readLock().unlock();
+        }
+        Iterator<Integer> slots = used.iterator();
+        return new Iterator<Tuple>() {
+            private Tuple next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && slots.hasNext()) {
+                    next = getTuple(slots.next());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+        };
+    }
+}
@@ -0,0 +1,117 @@
+package simpledb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes a page image as its XOR with a reference image of the same page,
+ * run-length encoded.  An update usually touches a few bytes of a page, so
+ * the XOR is mostly zeroes and collapses to a few bytes.
+ * <p>
+ * The encoding is the image length followed by pairs of runs: a count of
+ * bytes equal to the reference (zeroes in the XOR), then a count of literal
+ * XOR bytes and the bytes themselves.  Counts are unsigned LEB128 varints.
+ * A literal run only ends at MIN_ZERO_RUN zeroes, as a shorter gap costs
+ * more to encode as a new pair than as literals.  Without a reference the
+ * image is encoded against all zeroes.
+ */
+public class XorRleImageCodec extends PageImageCodec {
+
+    /** Shortest run of zeroes that ends a literal run */
+    static final int MIN_ZERO_RUN = 3;
+
+    @Override
+    public int getId() {
+        return XOR_RLE;
+    }
+
+    private static int ref(byte[] reference, int i) {
+        return reference != null && i < reference.length ? reference[i] : 0;
+    }
+
+    @Override
+    public byte[] encode(byte[] image, byte[] reference) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, image.length);
+        int i = 0;
+        while (i < image.length) {
+            int zeroes = 0;
+            while (i < image.length && image[i] == ref(reference, i)) {
+                zeroes++;
+                i++;
+            }
+            int literalStart = i;
+            int literalEnd = i;
+            while (literalEnd < image.length) {
+                // look for the zero run that ends the literal run
+                int run = 0;
+                while (literalEnd + run < image.length && run < MIN_ZERO_RUN
+                        && image[literalEnd + run] == ref(reference, literalEnd + run)) {
+                    run++;
+                }
+                if (run >= MIN_ZERO_RUN || literalEnd + run == image.length) {
+                    break;
+                }
+                literalEnd += run + 1;
+            }
+            writeVarint(out, zeroes);
+            writeVarint(out, literalEnd - literalStart);
+            for (int j = literalStart; j < literalEnd; j++) {
+                out.write(image[j] ^ ref(reference, j));
+            }
+            i = literalEnd;
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decode(byte[] encoded, byte[] reference) throws IOException {
+        int[] pos = {0};
+        int length = readVarint(encoded, pos);
+        byte[] image = new byte[length];
+        if (reference != null) {
+            System.arraycopy(reference, 0, image, 0, Math.min(length, reference.length));
+        }
+        int i = 0;
+        while (i < length) {
+            i += readVarint(encoded, pos);
+            int literals = readVarint(encoded, pos);
+            if (literals > length - i || literals > encoded.length - pos[0]) {
+                throw new IOException("bad XOR/RLE page image");
+            }
+            for (int j = 0; j < literals; j++) {
+                image[i++] ^= encoded[pos[0]++];
+            }
+        }
+        if (i != length) {
+            throw new IOException("bad XOR/RLE page image");
+        }
+        return image;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(byte[] in, int[] pos) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (pos[0] >= in.length) {
+                throw new IOException("bad XOR/RLE page image");
+            }
+            int b = in[pos[0]++];
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0) {
+                    throw new IOException("bad XOR/RLE page image");
+                }
+                return v;
+            }
+        }
+        throw new IOException("bad XOR/RLE page image");
+    }
+}
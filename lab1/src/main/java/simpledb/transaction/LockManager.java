@@ -15,7 +15,8 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class LockManager {
     //key：页id，value：作用于该页的所有lock
-    private Map<Integer, List<Lock>> lockCache;
+    //注意要用完整的PageId做key，只用页号会让不同表（以及B+树的root ptr页）的同号页互相冲突
+    private Map<PageId, List<Lock>> lockCache;
 
 
     public LockManager(){
@@ -33,12 +34,11 @@ public class LockManager {
      */
     public synchronized  Boolean acquireLock(TransactionId tid, PageId pageId, Permissions permissions){
         Lock lock = new Lock(tid, permissions);
-        int pid = pageId.getPageNumber();
-        List<Lock> locks = lockCache.get(pid);
+        List<Lock> locks = lockCache.get(pageId);
         if(locks==null || locks.size()==0){
             locks = new ArrayList<>();
             locks.add(lock);
-            lockCache.put(pid,locks);
+            lockCache.put(pageId,locks);
             return true;
         }
 
@@ -83,13 +83,15 @@ public class LockManager {
      * @param pageId
      */
     public synchronized  void releaseLock(TransactionId tid,PageId pageId){
-        int pid = pageId.getPageNumber();
-        List<Lock> locks = lockCache.get(pid);
+        List<Lock> locks = lockCache.get(pageId);
+        if(locks == null){
+            return;
+        }
         for(Lock l:locks){
             if(l.getTransactionId().equals(tid)){
                 locks.remove(l);
                 if(locks.size()==0){
-                    lockCache.remove(pid);
+                    lockCache.remove(pageId);
                 }
                 return;
             }
@@ -101,7 +103,7 @@ public class LockManager {
      * @param tid
      */
     public synchronized  void releaseAllLock(TransactionId tid){
-        for(Integer pid: lockCache.keySet()){
+        for(PageId pid: lockCache.keySet()){
             List<Lock> locks = lockCache.get(pid);
             for(Lock lock:locks){
                 if(lock.getTransactionId().equals(tid)){
@@ -122,11 +124,51 @@ public class LockManager {
      * @return
      */
     public synchronized Boolean holdsLock(TransactionId tid,PageId pageId){
-        for(Lock lock : lockCache.get(pageId.getPageNumber())){
+        List<Lock> locks = lockCache.get(pageId);
+        if(locks == null){
+            return false;
+        }
+        for(Lock lock : locks){
             if(lock.getTransactionId().equals(tid)){
                 return true;
             }
         }
         return false;
     }
+
+    /**
+     * 返回事务持有写锁的所有页
+     * @param tid
+     * @return
+     */
+    public synchronized List<PageId> getWriteLockedPages(TransactionId tid){
+        List<PageId> pages = new ArrayList<>();
+        for(Map.Entry<PageId, List<Lock>> e : lockCache.entrySet()){
+            for(Lock lock : e.getValue()){
+                if(lock.getTransactionId().equals(tid) && lock.getPermissions().equals(Permissions.READ_WRITE)){
+                    pages.add(e.getKey());
+                    break;
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * 判断是否有事务持有该页的写锁
+     * @param pageId
+     * @return
+     */
+    public synchronized Boolean isWriteLocked(PageId pageId){
+        List<Lock> locks = lockCache.get(pageId);
+        if(locks == null){
+            return false;
+        }
+        for(Lock lock : locks){
+            if(lock.getPermissions().equals(Permissions.READ_WRITE)){
+                return true;
+            }
+        }
+        return false;
+    }
 }
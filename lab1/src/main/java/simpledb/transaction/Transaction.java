@@ -12,6 +12,7 @@ import java.io.IOException;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean asyncCommit = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -33,6 +34,21 @@ public class Transaction {
         return tid;
     }
 
+    /**
+     * Relax the durability of this transaction's commit.  With async
+     * commit, commit() returns once the commit record is in the log buffer;
+     * the log flusher makes it durable within
+     * {@link simpledb.storage.LogFlusher#INTERVAL_MS} milliseconds, so a
+     * crash may lose the transaction even though commit() returned.
+     */
+    public void setAsyncCommit(boolean asyncCommit) {
+        this.asyncCommit = asyncCommit;
+    }
+
+    public boolean isAsyncCommit() {
+        return asyncCommit;
+    }
+
     /**
      * Finish the transaction
      */
@@ -53,18 +69,10 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write abort log record and rollback transaction
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            }
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
-            }
+            // Release locks; on commit this also logs the dirty pages and
+            // writes the commit record, on abort it writes the abort record
+            // and rolls back, before the locks go
+            Database.getBufferPool().transactionComplete(tid, !abort, asyncCommit); // release locks
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
@@ -140,6 +140,31 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    private static int threadsNamed(String name) {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name) && t.isAlive()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Unit test for the background page writer and log flusher stopping
+     * with the buffer pool and log they belong to
+     */
+    @Test public void backgroundThreadsStopOnReset() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        for (int i = 0; i < 3; i++) {
+            Database.reset();
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        }
+        assertEquals(1, threadsNamed("page-writer"));
+        assertEquals(1, threadsNamed("log-flusher"));
+        tid = new TransactionId();
+    }
+
     /**
      * JUnit suite target
      */
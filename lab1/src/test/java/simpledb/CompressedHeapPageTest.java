@@ -0,0 +1,189 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CompressedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] {Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE});
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int a, int b, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        t.setField(2, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static void assertSameTuples(List<Tuple> expected, Iterator<Tuple> it) {
+        for (Tuple e : expected) {
+            Tuple t = it.next();
+            for (int j = 0; j < TD.numFields(); j++) {
+                assertEquals(e.getField(j), t.getField(j));
+            }
+            assertEquals(e.getRecordId(), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for filling a page with runs, small ints and repeated
+     * strings, many more than fit a HeapPage
+     */
+    @Test public void compressible() throws Exception {
+        CompressedHeapPage page = new CompressedHeapPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, page.getNumSlots());
+        List<Tuple> tuples = new ArrayList<>();
+        while (page.getNumUnusedSlots() > 0) {
+            int n = tuples.size();
+            Tuple t = tuple(n / 100, 1000 + n % 13, "region" + n % 5);
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        int heapPageSlots = new HeapPage(pid, HeapPage.createEmptyPageData()).getNumSlots();
+        assertTrue(tuples.size() > 10 * heapPageSlots);
+        assertTrue(page.getEncodedSize() <= BufferPool.getPageSize());
+
+        assertSameTuples(tuples, new CompressedHeapPage(pid, page.getPageData()).iterator());
+    }
+
+    /**
+     * Unit test for a page of random values: a page with a free slot takes
+     * any tuple, and deleted slots are reused
+     */
+    @Test public void incompressible() throws Exception {
+        Random r = new Random(48);
+        CompressedHeapPage page = new CompressedHeapPage(pid, HeapPage.createEmptyPageData());
+        List<Tuple> tuples = new ArrayList<>();
+        while (page.getNumUnusedSlots() > 0) {
+            Tuple t = tuple(r.nextInt(), r.nextInt(), Long.toHexString(r.nextLong()));
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        assertTrue(tuples.size() > 0);
+
+        List<Tuple> kept = new ArrayList<>();
+        for (int i = 0; i < tuples.size(); i++) {
+            if (i % 2 == 0) {
+                page.deleteTuple(tuples.get(i));
+            } else {
+                kept.add(tuples.get(i));
+            }
+        }
+        assertNull(page.getTuple(0));
+        assertSameTuples(kept, new CompressedHeapPage(pid, page.getPageData()).iterator());
+
+        Tuple t = tuple(1, 2, "x");
+        page.insertTuple(t);
+        assertEquals(new RecordId(pid, 0), t.getRecordId());
+        for (Tuple k : kept) {
+            page.deleteTuple(k);
+        }
+        page.deleteTuple(t);
+        assertEquals(0, page.getNumSlots());
+    }
+
+    /**
+     * Unit test for deleting from a page packed until an insert no longer
+     * fits: every delete succeeds, whatever the pruned dictionaries encode to
+     */
+    @Test public void deleteFromFullPage() throws Exception {
+        Random r = new Random(26);
+        CompressedHeapPage page = new CompressedHeapPage(pid, HeapPage.createEmptyPageData());
+        List<Tuple> tuples = new ArrayList<>();
+        while (true) {
+            int n = tuples.size();
+            Tuple t = tuple(n / 7, r.nextInt(64), "s" + r.nextInt(n / 3 + 1));
+            try {
+                page.insertTuple(t);
+            } catch (DbException e) {
+                break;
+            }
+            tuples.add(t);
+        }
+        assertTrue(page.getEncodedSize() <= BufferPool.getPageSize());
+
+        List<Tuple> kept = new ArrayList<>(tuples);
+        while (!kept.isEmpty()) {
+            Tuple t = kept.remove(r.nextInt(kept.size()));
+            page.deleteTuple(t);
+            assertTrue(page.getEncodedSize() <= BufferPool.getPageSize());
+            if (kept.size() % 50 == 0) {
+                List<Tuple> expected = new ArrayList<>(kept);
+                expected.sort((a, b) -> a.getRecordId().getTupleNumber() - b.getRecordId().getTupleNumber());
+                assertSameTuples(expected, new CompressedHeapPage(pid, page.getPageData()).iterator());
+            }
+        }
+        assertEquals(0, page.getNumSlots());
+    }
+
+    /**
+     * Unit test for a heap file of compressed pages, and for the page type
+     * the log sees for it
+     */
+    @Test public void heapFile() throws Exception {
+        File f = File.createTempFile("compressed", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, PageRegistry.COMPRESSED_HEAP_PAGE);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(PageRegistry.COMPRESSED_HEAP_PAGE, PageRegistry.typeOf(new HeapPageId(hf.getId(), 0)));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, i % 7, "s" + i % 3));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        // 1000 tuples take 34 HeapPages
+        assertTrue(hf.numPages() <= 4);
+        assertTrue(hf.readPage(new HeapPageId(hf.getId(), 0)) instanceof CompressedHeapPage);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new IntField(i % 7), t.getField(1));
+            assertEquals("s" + i % 3, ((StringField) t.getField(2)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(1000, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapPageTest.class);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.storage.DataFileChannel;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+
+import static org.junit.Assert.*;
+
+public class DataFileChannelTest extends SimpleDbTestBase {
+
+    private File file;
+    private DataFileChannel channel;
+
+    @Before public void createFile() throws IOException {
+        file = File.createTempFile("channel", ".dat");
+        file.deleteOnExit();
+        channel = new DataFileChannel(file);
+    }
+
+    @After public void closeFile() throws IOException {
+        channel.close();
+    }
+
+    private static ByteBuffer bytes(int length, int value) {
+        byte[] b = new byte[length];
+        java.util.Arrays.fill(b, (byte) value);
+        return ByteBuffer.wrap(b);
+    }
+
+    /**
+     * Unit test for positional reads and writes
+     */
+    @Test public void positional() throws Exception {
+        channel.write(bytes(100, 1), 0);
+        channel.write(bytes(100, 2), 300);
+        assertEquals(400, file.length());
+
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        assertEquals(100, channel.read(buf, 300));
+        assertEquals(2, buf.get(99));
+
+        // a hole reads as zeroes, a read at the end returns -1
+        buf.clear();
+        assertEquals(100, channel.read(buf, 150));
+        assertEquals(0, buf.get(0));
+        buf.clear();
+        assertEquals(-1, channel.read(buf, 400));
+
+        // a read across the end is short
+        buf.clear();
+        assertEquals(50, channel.read(buf, 350));
+    }
+
+    /**
+     * Unit test for reopening the channel once it is closed
+     */
+    @Test public void reopen() throws Exception {
+        channel.write(bytes(10, 7), 0);
+        channel.close();
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        assertEquals(10, channel.read(buf, 0));
+        assertEquals(7, buf.get(9));
+
+        channel.truncate(0);
+        assertEquals(0, channel.size());
+    }
+
+    /**
+     * Unit test for a thread interrupted during an I/O: it fails, but the
+     * channel remains usable by the other threads
+     */
+    @Test public void interrupted() throws Exception {
+        channel.write(bytes(10, 3), 0);
+        Thread.currentThread().interrupt();
+        try {
+            channel.read(ByteBuffer.allocate(10), 0);
+            fail("interrupted read should fail");
+        } catch (ClosedByInterruptException e) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        ByteBuffer buf = ByteBuffer.allocate(10);
+        assertEquals(10, channel.read(buf, 0));
+        assertEquals(3, buf.get(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DataFileChannelTest.class);
+    }
+}
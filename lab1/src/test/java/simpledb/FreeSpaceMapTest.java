@@ -0,0 +1,135 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.storage.FreeSpaceMap;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private static File sidecar() throws Exception {
+        File f = File.createTempFile("table", ".fsm");
+        f.deleteOnExit();
+        f.delete();
+        return f;
+    }
+
+    /**
+     * Unit test for recording free slots and finding pages with room
+     */
+    @Test public void updateAndFind() throws Exception {
+        FreeSpaceMap fsm = new FreeSpaceMap(sidecar());
+        assertEquals(0, fsm.numPages());
+        assertEquals(-1, fsm.nextPageWithRoom(0));
+
+        // pages the map did not cover are unknown and may have room
+        fsm.extendTo(3);
+        assertEquals(FreeSpaceMap.UNKNOWN, fsm.getFree(1));
+        assertEquals(0, fsm.nextPageWithRoom(0));
+
+        fsm.update(0, 0);
+        fsm.update(1, 0);
+        fsm.update(2, 1000);
+        assertEquals(FreeSpaceMap.MAX_FREE, fsm.getFree(2));
+        assertEquals(2, fsm.nextPageWithRoom(0));
+        fsm.update(2, 0);
+        assertEquals(-1, fsm.nextPageWithRoom(0));
+
+        fsm.update(5, 3);
+        assertEquals(6, fsm.numPages());
+        assertEquals(3, fsm.nextPageWithRoom(0));
+        assertEquals(5, fsm.nextPageWithRoom(5));
+
+        fsm.clear();
+        assertEquals(0, fsm.numPages());
+        assertEquals(-1, fsm.nextPageWithRoom(0));
+    }
+
+    /**
+     * Unit test for saving and loading the sidecar file
+     */
+    @Test public void saveAndLoad() throws Exception {
+        File f = sidecar();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        fsm.update(0, 0);
+        fsm.update(1, 17);
+        fsm.update(2, 0);
+        fsm.save();
+
+        FreeSpaceMap loaded = new FreeSpaceMap(f);
+        assertEquals(3, loaded.numPages());
+        assertEquals(0, loaded.getFree(0));
+        assertEquals(17, loaded.getFree(1));
+        assertEquals(1, loaded.nextPageWithRoom(0));
+        assertEquals(-1, loaded.nextPageWithRoom(2));
+    }
+
+    /**
+     * Unit test for keeping the used limit of the heap file in the sidecar
+     * file, which only holds for the length it was recorded for
+     */
+    @Test public void usedLimit() throws Exception {
+        File f = sidecar();
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        assertEquals(-1, fsm.getUsedLimit(4096));
+        fsm.update(0, 17);
+        fsm.setUsedLimit(20, 4096 * 64);
+        assertEquals(20, fsm.getUsedLimit(4096 * 64));
+        assertEquals(-1, fsm.getUsedLimit(4096 * 65));
+
+        // the limit is written at once, the map on save
+        FreeSpaceMap loaded = new FreeSpaceMap(f);
+        assertEquals(20, loaded.getUsedLimit(4096 * 64));
+        fsm.setUsedLimit(36, 4096 * 64);
+        fsm.save();
+        loaded = new FreeSpaceMap(f);
+        assertEquals(36, loaded.getUsedLimit(4096 * 64));
+        assertEquals(17, loaded.getFree(0));
+
+        fsm.setUsedLimit(-1, -1);
+        assertEquals(-1, new FreeSpaceMap(f).getUsedLimit(4096 * 64));
+    }
+
+    /**
+     * Unit test for loading a sidecar file written without a used limit
+     */
+    @Test public void loadWithoutUsedLimit() throws Exception {
+        File f = sidecar();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f))) {
+            out.writeInt(0x46534d31);
+            out.writeInt(2);
+            out.write(new byte[] {0, 5});
+        }
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        assertEquals(2, fsm.numPages());
+        assertEquals(5, fsm.getFree(1));
+        assertEquals(-1, fsm.getUsedLimit(f.length()));
+    }
+
+    /**
+     * Unit test for a damaged sidecar file, which gives an empty map
+     */
+    @Test public void damaged() throws Exception {
+        File f = sidecar();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        FreeSpaceMap fsm = new FreeSpaceMap(f);
+        assertEquals(0, fsm.numPages());
+        fsm.extendTo(2);
+        assertEquals(0, fsm.nextPageWithRoom(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
@@ -81,6 +81,34 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() from a memory mapping, as the file
+     * grows and is truncated
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        byte[] unmapped = hf.readPage(pid).getPageData();
+        hf.setMemoryMapped(true);
+        assertTrue(hf.isMemoryMapped());
+        assertArrayEquals(unmapped, hf.readPage(pid).getPageData());
+
+        // a page appended after the file was mapped
+        HeapPageId pid1 = new HeapPageId(hf.getId(), 1);
+        HeapPage page = new HeapPage(pid1, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        hf.writePage(page);
+        HeapPage mapped = (HeapPage) hf.readPage(pid1);
+        assertEquals(page.getNumUnusedSlots(), mapped.getNumUnusedSlots());
+        assertArrayEquals(page.getPageData(), mapped.getPageData());
+        assertNull(hf.readPage(new HeapPageId(hf.getId(), 2)));
+
+        hf.truncate();
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumUnusedSlots());
+        assertNull(hf.readPage(pid1));
+        hf.setMemoryMapped(false);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -10,10 +10,16 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -51,6 +57,222 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() going to the page the free space
+     * map gives, and for saving the map
+     */
+    @Test public void addTupleUsesFreeSpaceMap() throws Exception {
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 1009; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        assertEquals(0, fsm.getFree(0));
+        assertEquals(0, fsm.getFree(1));
+
+        empty.deleteTuple(tid, first);
+        assertEquals(1, fsm.getFree(0));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the insert only locks the page with room
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        assertEquals(3, empty.numPages());
+        assertEquals(0, fsm.getFree(0));
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 1)));
+
+        empty.sync();
+        FreeSpaceMap reloaded = new HeapFile(empty.getFile(), empty.getTupleDesc()).getFreeSpaceMap();
+        assertEquals(3, reloaded.numPages());
+        assertEquals(fsm.getFree(2), reloaded.getFree(2));
+        assertEquals(2, reloaded.nextPageWithRoom(0));
+    }
+
+    /**
+     * Unit test for the free space map after an abort, and for inserts
+     * skipping a page with room that another transaction has locked
+     */
+    @Test public void freeSpaceOfUncommittedWork() throws Exception {
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            Database.getBufferPool().insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(0, fsm.getFree(0));
+        Database.getBufferPool().transactionComplete(aborted, false);
+        assertEquals(FreeSpaceMap.MAX_FREE, fsm.getFree(0));
+
+        Tuple first = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, first);
+        for (int i = 1; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+
+        // the delete is not committed, so the insert does not wait for page 0
+        TransactionId deleting = new TransactionId();
+        Database.getBufferPool().deleteTuple(deleting, first);
+        assertEquals(1, fsm.getFree(0));
+        tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(7, 2);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), t);
+        assertEquals(1, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(empty.getId(), 0)));
+        Database.getBufferPool().transactionComplete(deleting, false);
+    }
+
+    /**
+     * Unit test for reusing the pages an aborted transaction filled
+     */
+    @Test public void freeSpaceAfterAbort() throws Exception {
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        Database.getBufferPool().transactionComplete(aborted, false);
+
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * Unit test for growing a HeapFile by extents of several pages, and for
+     * its high-water mark
+     */
+    @Test public void extentGrowth() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        empty.setExtentSize(16 * pageSize);
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        assertEquals(16 * pageSize, empty.getFile().length());
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // the preallocated pages are not part of the reopened file either
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(3, reopened.numPages());
+
+        // a page written past the high-water mark raises it
+        empty.writePage(new HeapPage(new HeapPageId(empty.getId(), 20), HeapPage.createEmptyPageData()));
+        assertEquals(21, empty.numPages());
+        assertEquals(21 * pageSize, empty.getFile().length());
+
+        tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(1009, count);
+    }
+
+    /**
+     * Unit test for growing a small HeapFile, which by default does not
+     * preallocate a whole extent
+     */
+    @Test public void defaultGrowth() throws Exception {
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(3, empty.numPages());
+        assertEquals(3 * BufferPool.getPageSize(), empty.getFile().length());
+    }
+
+    /**
+     * Unit test for reopening a HeapFile with a preallocated tail, which
+     * only looks for the high-water mark below the used limit recorded in
+     * the free space map
+     */
+    @Test public void reopenWithUsedLimit() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        empty.setExtentSize(64 * pageSize);
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        long length = empty.getFile().length();
+        assertEquals(64 * pageSize, length);
+        int limit = empty.getFreeSpaceMap().getUsedLimit(length);
+        assertTrue(limit >= 3 && limit < 64);
+
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(limit, reopened.getFreeSpaceMap().getUsedLimit(length));
+        assertEquals(3, reopened.numPages());
+
+        // cutting the file makes the limit useless, so it is dropped
+        tid = new TransactionId();
+        empty.truncate();
+        assertEquals(-1, empty.getFreeSpaceMap().getUsedLimit(empty.getFile().length()));
+        assertEquals(1, new HeapFile(empty.getFile(), empty.getTupleDesc()).numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.vacuum() moving tuples off the last pages and
+     * cutting them off the file
+     */
+    @Test public void vacuum() throws Exception {
+        for (int i = 0; i < 1009; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(3, empty.numPages());
+
+        // keep every third tuple, which all fit on one page
+        tid = new TransactionId();
+        DbFileIterator it = empty.iterator(tid);
+        List<Tuple> deleting = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (((IntField) t.getField(0)).getValue() % 3 != 0) {
+                deleting.add(t);
+            }
+        }
+        it.close();
+        for (Tuple t : deleting) {
+            Database.getBufferPool().deleteTuple(tid, t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertEquals(2, empty.vacuum());
+        assertEquals(1, empty.numPages());
+        assertEquals(BufferPool.getPageSize(), empty.getFile().length());
+        assertEquals(1, empty.getFreeSpaceMap().numPages());
+
+        tid = new TransactionId();
+        Set<Integer> values = new HashSet<>();
+        it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        it.close();
+        assertEquals(337, values.size());
+        for (int i = 0; i < 1009; i += 3) {
+            assertTrue(values.contains(i));
+        }
+
+        // the file grows again from its new end
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(1, empty.numPages());
+        assertEquals(0, empty.vacuum());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
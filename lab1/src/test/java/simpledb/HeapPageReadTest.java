@@ -6,6 +6,7 @@ import org.junit.Test;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -102,6 +103,58 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for decoding single tuples and fields on demand
+     */
+    @Test public void getTupleAndField() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        assertEquals(EXAMPLE_VALUES[7][1], ((IntField) page.getField(7, 1)).getValue());
+        assertNull(page.getField(20, 0));
+        assertNull(page.getTuple(20));
+
+        Tuple tup = page.getTuple(3);
+        assertEquals(EXAMPLE_VALUES[3][0], ((IntField) tup.getField(0)).getValue());
+        assertEquals(new RecordId(pid, 3), tup.getRecordId());
+        // a tuple is decoded once, so the iterator hands out the same object
+        assertSame(tup, page.getTuple(3));
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < 3; i++)
+            it.next();
+        assertSame(tup, it.next());
+
+        // only some of the tuples were decoded, the page image is unchanged
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+        page.deleteTuple(tup);
+        assertNull(page.getTuple(3));
+    }
+
+    /**
+     * Unit test for scanning the tuples that pass a predicate, with some of
+     * their columns
+     */
+    @Test public void filteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(40000));
+        int[] columns = new int[] {1};
+        TupleDesc projected = Utility.getTupleDesc(2).project(columns);
+        Iterator<Tuple> it = page.iterator(columns, projected, p);
+        for (int row = 0; row < EXAMPLE_VALUES.length; row++) {
+            if (EXAMPLE_VALUES[row][0] <= 40000)
+                continue;
+            Tuple tup = it.next();
+            assertEquals(1, tup.getTupleDesc().numFields());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(0)).getValue());
+            assertEquals(new RecordId(pid, row), tup.getRecordId());
+        }
+        assertFalse(it.hasNext());
+
+        // whole tuples are the ones the page caches
+        it = page.iterator(null, null, p);
+        Tuple first = it.next();
+        assertEquals(new RecordId(pid, 8), first.getRecordId());
+        assertSame(first, page.getTuple(8));
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -9,11 +9,13 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -129,6 +131,45 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() following inserts and deletes
+     */
+    @Test public void pageDataTracksChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple added = Utility.getHeapTuple(new int[] {5, 6});
+        page.insertTuple(added);
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(21, copy.getNumSlots() - copy.getNumUnusedSlots());
+        assertTrue(TestUtil.compareTuples(added, copy.getTuple(added.getRecordId().getTupleNumber())));
+
+        page.deleteTuple(added);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData());
+
+        // bytes left in empty slots are not part of the image
+        byte[] dirtyData = HeapPageReadTest.EXAMPLE_DATA.clone();
+        int[] range = page.getSlotRanges(30);
+        dirtyData[range[0]] = 42;
+        dirtyData[dirtyData.length - 1] = 42;
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, new HeapPage(pid, dirtyData).getPageData());
+    }
+
+    /**
+     * Unit test for a page read in place from a buffer, which copies the
+     * bytes on the first change only
+     */
+    @Test public void copyOnWrite() throws Exception {
+        byte[] data = HeapPageReadTest.EXAMPLE_DATA.clone();
+        HeapPage page = new HeapPage(pid, ByteBuffer.wrap(data).asReadOnlyBuffer());
+        assertEquals(20, page.getNumSlots() - page.getNumUnusedSlots());
+
+        Tuple added = Utility.getHeapTuple(new int[] {5, 6});
+        page.insertTuple(added);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, data);
+        assertEquals(483, page.getNumUnusedSlots());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+        assertEquals(5, ((IntField) page.getField(added.getRecordId().getTupleNumber(), 0)).getValue());
+    }
+
     /**
      * JUnit suite target
      */
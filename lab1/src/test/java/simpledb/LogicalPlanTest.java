@@ -0,0 +1,137 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.common.Database;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+    private List<List<Integer>> tuples1;
+    private List<List<Integer>> tuples2;
+    private int tableId1;
+    private int tableId2;
+    private Map<String, TableStats> stats;
+
+    private int addTable(List<List<Integer>> tuples) throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 200, 100, null, tuples, "c");
+        String tableName = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(f, tableName);
+        stats.put(tableName, new TableStats(f.getId(), 1));
+        return f.getId();
+    }
+
+    @Before public void setUp() throws Exception {
+        stats = new HashMap<>();
+        tuples1 = new ArrayList<>();
+        tableId1 = addTable(tuples1);
+        tuples2 = new ArrayList<>();
+        tableId2 = addTable(tuples2);
+    }
+
+    // the scans at the leaves of the plan
+    private static List<SeqScan> scans(OpIterator op) {
+        List<SeqScan> result = new ArrayList<>();
+        if (op instanceof SeqScan) {
+            result.add((SeqScan) op);
+        } else if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                result.addAll(scans(child));
+            }
+        }
+        return result;
+    }
+
+    private static SeqScan scanOf(List<SeqScan> scans, String alias) {
+        for (SeqScan ss : scans) {
+            if (ss.getAlias().equals(alias))
+                return ss;
+        }
+        throw new AssertionError("no scan of " + alias);
+    }
+
+    private LogicalPlan joinPlan() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId1, "t");
+        lp.addScan(tableId2, "u");
+        lp.addJoin("t.c0", "u.c0", Predicate.Op.EQUALS);
+        lp.addFilter("t.c3", Predicate.Op.LESS_THAN, "50");
+        return lp;
+    }
+
+    /**
+     * Unit test for scanning only the columns a query refers to
+     */
+    @Test public void scanReferencedColumns() throws Exception {
+        LogicalPlan lp = joinPlan();
+        lp.addProjectField("t.c1", null);
+        TransactionId tid = new TransactionId();
+        OpIterator plan = lp.physicalPlan(tid, stats, false);
+
+        List<SeqScan> scans = scans(plan);
+        assertEquals(2, scans.size());
+        TupleDesc td = scanOf(scans, "t").getTupleDesc();
+        assertEquals(3, td.numFields());
+        assertEquals("t.c0", td.getFieldName(0));
+        assertEquals("t.c1", td.getFieldName(1));
+        assertEquals("t.c3", td.getFieldName(2));
+        td = scanOf(scans, "u").getTupleDesc();
+        assertEquals(1, td.numFields());
+        assertEquals("u.c0", td.getFieldName(0));
+
+        List<Integer> expected = new ArrayList<>();
+        for (List<Integer> t : tuples1) {
+            for (List<Integer> u : tuples2) {
+                if (t.get(3) < 50 && t.get(0).equals(u.get(0)))
+                    expected.add(t.get(1));
+            }
+        }
+        List<Integer> actual = new ArrayList<>();
+        plan.open();
+        while (plan.hasNext()) {
+            Tuple t = plan.next();
+            assertEquals(1, t.getTupleDesc().numFields());
+            actual.add(((IntField) t.getField(0)).getValue());
+        }
+        plan.close();
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for SELECT *, which scans every column
+     */
+    @Test public void scanAllColumns() throws Exception {
+        LogicalPlan lp = joinPlan();
+        lp.addProjectField("*", null);
+        OpIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        for (SeqScan ss : scans(plan)) {
+            assertEquals(4, ss.getTupleDesc().numFields());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogicalPlanTest.class);
+    }
+}
@@ -0,0 +1,82 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.PageRegistry;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PageRegistryTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for PageRegistry.typeOf() on the built-in pages and page ids
+     */
+    @Test public void typeOf() throws Exception {
+        assertEquals(PageRegistry.HEAP_PAGE, PageRegistry.typeOf(new HeapPageId(1, 2)));
+        assertEquals(PageRegistry.BTREE_ROOT_PTR_PAGE, PageRegistry.typeOf(new BTreePageId(1, 0, BTreePageId.ROOT_PTR)));
+        assertEquals(PageRegistry.BTREE_INTERNAL_PAGE, PageRegistry.typeOf(new BTreePageId(1, 2, BTreePageId.INTERNAL)));
+        assertEquals(PageRegistry.BTREE_LEAF_PAGE, PageRegistry.typeOf(new BTreePageId(1, 2, BTreePageId.LEAF)));
+        assertEquals(PageRegistry.BTREE_HEADER_PAGE, PageRegistry.typeOf(new BTreePageId(1, 2, BTreePageId.HEADER)));
+
+        BTreePageId rootPtrId = new BTreePageId(1, 0, BTreePageId.ROOT_PTR);
+        Page rootPtr = new BTreeRootPtrPage(rootPtrId, BTreeRootPtrPage.createEmptyPageData());
+        assertEquals(PageRegistry.BTREE_ROOT_PTR_PAGE, PageRegistry.typeOf(rootPtr));
+    }
+
+    /**
+     * Unit test for rebuilding page ids and pages from their type id
+     */
+    @Test public void roundTrip() throws Exception {
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+        HeapPage page = new HeapPage(new HeapPageId(-1, -1), HeapPageReadTest.EXAMPLE_DATA);
+
+        int type = PageRegistry.typeOf(page);
+        PageId pid = PageRegistry.createId(type, -1, -1);
+        assertEquals(page.getId(), pid);
+        Page copy = PageRegistry.createPage(type, pid, page.getPageData());
+        assertTrue(copy instanceof HeapPage);
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+
+        PageId leafId = PageRegistry.createId(PageRegistry.BTREE_LEAF_PAGE, 3, 4);
+        assertEquals(new BTreePageId(3, 4, BTreePageId.LEAF), leafId);
+    }
+
+    /**
+     * Unit test for unknown and duplicate type ids
+     */
+    @Test public void badTypes() {
+        try {
+            PageRegistry.createId(100, 1, 1);
+            fail("unknown page type should be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            PageRegistry.register(PageRegistry.HEAP_PAGE, HeapPage.class, pid -> false, HeapPageId::new,
+                    (pid, data) -> new HeapPage((HeapPageId) pid, data));
+            fail("duplicate page type should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageRegistryTest.class);
+    }
+}
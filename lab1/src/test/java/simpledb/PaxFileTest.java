@@ -0,0 +1,140 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PaxFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+            new String[] {"a", "b", "c"});
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int n) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(n));
+        t.setField(1, new StringField("s" + n, Type.STRING_LEN));
+        t.setField(2, new IntField(-n));
+        return t;
+    }
+
+    /**
+     * Unit test for the column-wise layout of a PaxPage
+     */
+    @Test public void pageLayout() throws Exception {
+        PaxPage page = new PaxPage(pid, HeapPage.createEmptyPageData());
+        int slots = page.getNumSlots();
+        // as many tuples as a HeapPage holds
+        assertEquals(new HeapPage(pid, HeapPage.createEmptyPageData()).getNumSlots(), slots);
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < slots; i++) {
+            Tuple t = tuple(i);
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        assertEquals(0, page.getNumUnusedSlots());
+
+        // the first column of all slots comes first, right after the header
+        int[] ranges = page.getSlotRanges(1);
+        assertEquals(6, ranges.length);
+        assertEquals(ranges[0] + 4, page.getSlotRanges(2)[0]);
+        assertEquals(ranges[0] + (slots - 1) * 4 + Type.STRING_TYPE.getLen(), ranges[2]);
+        byte[] data = page.getPageData();
+        assertEquals(1, data[ranges[0] + 3]);
+
+        page.deleteTuple(tuples.get(1));
+        assertEquals(0, page.getPageData()[ranges[0] + 3]);
+
+        PaxPage copy = page.newInstance(page.getPageData());
+        assertNull(copy.getTuple(1));
+        assertEquals("s5", ((StringField) copy.getTuple(5).getField(1)).getValue());
+        TupleDesc projected = TD.project(new int[] {2, 0});
+        Iterator<Tuple> it = copy.iterator(new int[] {2, 0}, projected);
+        Tuple t = it.next();
+        assertEquals(projected, t.getTupleDesc());
+        assertEquals(new IntField(0), t.getField(0));
+        t = it.next();
+        assertEquals(new IntField(-2), t.getField(0));
+        assertEquals(new IntField(2), t.getField(1));
+        assertEquals(new RecordId(pid, 2), t.getRecordId());
+    }
+
+    /**
+     * Unit test for scanning some columns of a PaxFile, and for the page
+     * type the log sees for it
+     */
+    @Test public void scanColumns() throws Exception {
+        File f = File.createTempFile("pax", ".dat");
+        f.deleteOnExit();
+        PaxFile pf = new PaxFile(f, TD);
+        Database.getCatalog().addTable(pf, SystemTestUtil.getUUID());
+        assertEquals(PageRegistry.PAX_PAGE, PageRegistry.typeOf(new HeapPageId(pf.getId(), 0)));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(tid, pf.getId(), tuple(i));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(pf.readPage(new HeapPageId(pf.getId(), 0)) instanceof PaxPage);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, pf.getId(), "t", new int[] {1, 2});
+        assertEquals("t.b", scan.getTupleDesc().getFieldName(0));
+        assertEquals(Type.INT_TYPE, scan.getTupleDesc().getFieldType(1));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            assertEquals(2, t.getTupleDesc().numFields());
+            int n = -((IntField) t.getField(1)).getValue();
+            assertEquals("s" + n, ((StringField) t.getField(0)).getValue());
+            count++;
+        }
+        scan.close();
+        assertEquals(300, count);
+
+        // other files project whole tuples
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(3, 10, null, null);
+        DbFileIterator it = hf.iterator(tid, new int[] {2});
+        it.open();
+        count = 0;
+        while (it.hasNext()) {
+            assertEquals(1, it.next().getTupleDesc().numFields());
+            count++;
+        }
+        it.close();
+        assertEquals(10, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PaxFileTest.class);
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.SlotDelta;
+import simpledb.storage.SlottedPage;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Iterator;
+
+import static org.junit.Assert.*;
+
+public class SlotDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static SlotDelta roundTrip(SlotDelta delta) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        delta.serialize(new DataOutputStream(baos));
+        return SlotDelta.deserialize(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    }
+
+    /**
+     * Unit test for SlotDelta redo and undo of an insert, a delete and an update
+     */
+    @Test public void redoUndo() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        HeapPage after = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = after.iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+        after.deleteTuple(first);
+        after.deleteTuple(second);
+        after.insertTuple(Utility.getHeapTuple(new int[]{7, 7}));
+        after.insertTuple(Utility.getHeapTuple(new int[]{8, 8}));
+
+        SlotDelta delta = roundTrip(SlotDelta.compute(before, after));
+        assertTrue(delta.getNumEntries() > 0);
+
+        SlottedPage redone = delta.redo(before);
+        assertArrayEquals(after.getPageData(), redone.getPageData());
+        SlottedPage undone = delta.undo(after);
+        assertArrayEquals(before.getPageData(), undone.getPageData());
+
+        // applying a delta twice changes nothing
+        assertArrayEquals(after.getPageData(), delta.redo(redone).getPageData());
+    }
+
+    /**
+     * Unit test for SlotDelta.compute() on identical pages
+     */
+    @Test public void unchanged() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        SlotDelta delta = roundTrip(SlotDelta.compute(page, page));
+        assertEquals(0, delta.getNumEntries());
+        assertArrayEquals(page.getPageData(), delta.redo(page).getPageData());
+    }
+
+    /**
+     * Unit test for SlotDelta.compute() on a single inserted tuple: one slot
+     * and the header byte holding its bit
+     */
+    @Test public void singleInsert() throws Exception {
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[]{1, 2}));
+
+        SlotDelta delta = SlotDelta.compute(before, after);
+        assertEquals(2, delta.getNumEntries());
+        assertArrayEquals(after.getPageData(), roundTrip(delta).redo(before).getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlotDeltaTest.class);
+    }
+}
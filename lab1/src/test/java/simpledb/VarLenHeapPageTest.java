@@ -0,0 +1,161 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VarLenHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE});
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        pid = new HeapPageId(-1, 0);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int n, String s) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(n));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private static String text(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n % 20; i++) {
+            sb.append((char) ('a' + i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unit test for inserting short strings, many more than fit a HeapPage
+     */
+    @Test public void insertAndRead() throws Exception {
+        VarLenHeapPage page = new VarLenHeapPage(pid, HeapPage.createEmptyPageData());
+        assertEquals(0, page.getNumSlots());
+        int n = 0;
+        while (page.getNumUnusedSlots() > 0) {
+            page.insertTuple(tuple(n, text(n)));
+            n++;
+        }
+        // a HeapPage holds 30 of these tuples
+        assertTrue(n > 60);
+
+        VarLenHeapPage copy = new VarLenHeapPage(pid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(i, ((IntField) t.getField(0)).getValue());
+            assertEquals(text(i), ((StringField) t.getField(1)).getValue());
+            assertEquals(new RecordId(pid, i), t.getRecordId());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for deleting tuples and reusing their space and slots
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        VarLenHeapPage page = new VarLenHeapPage(pid, HeapPage.createEmptyPageData());
+        List<Tuple> tuples = new ArrayList<>();
+        while (page.getNumUnusedSlots() > 0) {
+            Tuple t = tuple(tuples.size(), text(tuples.size()));
+            page.insertTuple(t);
+            tuples.add(t);
+        }
+        int full = tuples.size();
+
+        // free every other tuple; the holes are reclaimed by moving records
+        for (int i = 0; i < full; i += 2) {
+            page.deleteTuple(tuples.get(i));
+        }
+        assertNull(page.getTuple(0));
+        Tuple kept = page.getTuple(1);
+        // tuples of the same sizes as the deleted ones all fit again
+        int inserted = 0;
+        while (true) {
+            Tuple t = tuple(1000 + inserted, text(2 * inserted));
+            try {
+                page.insertTuple(t);
+            } catch (DbException e) {
+                break;
+            }
+            if (inserted < (full + 1) / 2) {
+                // the free slots are reused first
+                assertEquals(2 * inserted, t.getRecordId().getTupleNumber());
+            }
+            inserted++;
+        }
+        assertTrue(inserted >= (full + 1) / 2);
+        assertSame(kept, page.getTuple(1));
+        assertEquals(text(1), ((StringField) new VarLenHeapPage(pid, page.getPageData()).getTuple(1).getField(1)).getValue());
+
+        try {
+            page.deleteTuple(tuples.get(0));
+            fail("deleted tuple should be gone");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for a heap file of variable-length pages, and for the page
+     * type the log sees for it
+     */
+    @Test public void heapFile() throws Exception {
+        File f = File.createTempFile("varlen", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = new HeapFile(f, TD, PageRegistry.VARLEN_HEAP_PAGE);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        assertEquals(PageRegistry.VARLEN_HEAP_PAGE, PageRegistry.typeOf(new HeapPageId(hf.getId(), 0)));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, text(i)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+        // 300 tuples take 10 HeapPages
+        assertTrue(hf.numPages() <= 3);
+        assertTrue(hf.readPage(new HeapPageId(hf.getId(), 0)) instanceof VarLenHeapPage);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(text(((IntField) t.getField(0)).getValue()), ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(300, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VarLenHeapPageTest.class);
+    }
+}
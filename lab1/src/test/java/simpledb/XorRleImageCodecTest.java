@@ -0,0 +1,100 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+import simpledb.storage.PageImageCodec;
+import simpledb.storage.XorRleImageCodec;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class XorRleImageCodecTest extends SimpleDbTestBase {
+
+    private final XorRleImageCodec codec = new XorRleImageCodec();
+
+    private static byte[] randomImage(Random r, int length) {
+        byte[] image = new byte[length];
+        r.nextBytes(image);
+        return image;
+    }
+
+    /**
+     * Unit test for an image that differs from its reference in a few bytes
+     */
+    @Test public void fewChanges() throws Exception {
+        Random r = new Random(1);
+        byte[] before = randomImage(r, 4096);
+        byte[] after = before.clone();
+        after[0] ^= 1;
+        after[100] = 7;
+        after[101] = 8;
+        after[4095] = (byte) ~after[4095];
+
+        byte[] encoded = codec.encode(after, before);
+        assertTrue(encoded.length < 32);
+        assertArrayEquals(after, codec.decode(encoded, before));
+    }
+
+    /**
+     * Unit test for identical images and for images without a reference
+     */
+    @Test public void noChangesAndNoReference() throws Exception {
+        Random r = new Random(2);
+        byte[] image = randomImage(r, 4096);
+        byte[] encoded = codec.encode(image, image);
+        assertTrue(encoded.length < 8);
+        assertArrayEquals(image, codec.decode(encoded, image));
+
+        byte[] empty = new byte[4096];
+        empty[17] = 3;
+        assertTrue(codec.encode(empty, null).length < 16);
+        assertArrayEquals(empty, codec.decode(codec.encode(empty, null), null));
+        assertArrayEquals(image, codec.decode(codec.encode(image, null), null));
+    }
+
+    /**
+     * Unit test for random images, changes and reference lengths
+     */
+    @Test public void randomRoundTrips() throws Exception {
+        Random r = new Random(3);
+        for (int i = 0; i < 200; i++) {
+            byte[] before = randomImage(r, r.nextInt(300));
+            byte[] after = new byte[r.nextInt(300)];
+            for (int j = 0; j < after.length; j++) {
+                after[j] = j < before.length && r.nextInt(4) != 0 ? before[j] : (byte) r.nextInt(256);
+            }
+            assertArrayEquals(after, codec.decode(codec.encode(after, before), before));
+        }
+    }
+
+    /**
+     * Unit test for the rejection of a truncated encoding
+     */
+    @Test(expected = IOException.class) public void truncated() throws Exception {
+        byte[] before = new byte[64];
+        byte[] after = new byte[64];
+        after[10] = 1;
+        byte[] encoded = codec.encode(after, before);
+        byte[] cut = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 0, cut, 0, cut.length);
+        codec.decode(cut, before);
+    }
+
+    /**
+     * Unit test for looking codecs up by their log id
+     */
+    @Test public void forId() throws Exception {
+        assertEquals(PageImageCodec.XOR_RLE, PageImageCodec.forId(PageImageCodec.XOR_RLE).getId());
+        assertEquals(PageImageCodec.RAW, PageImageCodec.forId(PageImageCodec.RAW).getId());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(XorRleImageCodecTest.class);
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.Delete;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
@@ -89,6 +90,61 @@ public class AbortEvictionTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    private static int countTuples(HeapFile f, Transaction t)
+            throws DbException, TransactionAbortedException {
+        SeqScan ss = new SeqScan(t.getId(), f.getId(), "");
+        int count = 0;
+        ss.open();
+        while (ss.hasNext()) {
+            ss.next();
+            count++;
+        }
+        ss.close();
+        return count;
+    }
+
+    private static void deleteAll(HeapFile f, Transaction t, int expected)
+            throws DbException, TransactionAbortedException {
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), f.getId(), ""));
+        delete.open();
+        Tuple result = delete.next();
+        assertEquals(expected, ((IntField)result.getField(0)).getValue());
+        delete.close();
+    }
+
+    /** Modifies more pages than fit in the buffer pool, so that dirty pages
+     * of a running transaction have to be evicted (STEAL), then aborts it and
+     * ensures that its effects were undone from the log.
+     */
+    @Test public void testStealDirtyPages()
+            throws IOException, DbException, TransactionAbortedException {
+        // Allocate a file with ~10 pages of data
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
+        Database.resetBufferPool(2);
+
+        // delete every tuple, then abort
+        Transaction t = new Transaction();
+        t.start();
+        deleteAll(f, t, 512*10);
+        t.transactionComplete(true);
+
+        t = new Transaction();
+        t.start();
+        assertEquals(512*10, countTuples(f, t));
+        t.commit();
+
+        // delete every tuple, then commit
+        t = new Transaction();
+        t.start();
+        deleteAll(f, t, 512*10);
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(0, countTuples(f, t));
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AbortEvictionTest.class);
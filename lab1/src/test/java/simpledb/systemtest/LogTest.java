@@ -10,14 +10,18 @@ import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test logging, aborts, and recovery.
@@ -47,6 +51,30 @@ public class LogTest extends SimpleDbTestBase {
         insert.close();
     }
 
+    // bulk load the tuples from, ..., from + n - 1
+    void bulkLoad(HeapFile hf, Transaction t, int from, int n)
+        throws IOException, DbException, TransactionAbortedException {
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            tuples.add(Utility.getHeapTuple(new int[]{from + i, 0}));
+        }
+        assertEquals(n, hf.bulkLoad(t.getId(), tuples.iterator()));
+    }
+
+    // count the tuples of a table
+    int count(HeapFile hf, Transaction t)
+        throws DbException, TransactionAbortedException {
+        int count = 0;
+        SeqScan scan = new SeqScan(t.getId(), hf.getId(), "");
+        scan.open();
+        while(scan.hasNext()){
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
     // check that the specified tuple is, or is not, present
     void look(HeapFile hf, Transaction t, int v1, boolean present)
         throws DbException, TransactionAbortedException {
@@ -437,6 +465,365 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // checkpoint: must not write T1's page
+        // crash
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getLogFile().logCheckpoint();
+
+        // doInsert flushed the page holding 1; commits do not write pages,
+        // so 2 is on disk only if the page writer got to it before T1
+        HeapPage onDisk = (HeapPage) hf1.readPage(new HeapPageId(hf1.getId(), 0));
+        int count = 0;
+        for (Tuple tu : (Iterable<Tuple>) onDisk::iterator) {
+            assertFalse(((IntField) tu.getField(0)).getValue() == 3);
+            count++;
+        }
+        assertTrue(count == 1 || count == 2);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestAbortInPlaceCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, its page is written to disk, then T1 aborts:
+        // the page is restored in the buffer pool only
+        // crash
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        Database.getBufferPool().flushAllPages();
+        t1.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestAsyncCommitCrash()
+            throws IOException, DbException, TransactionAbortedException, InterruptedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts and commits asynchronously
+        // wait for the log flusher
+        // crash
+        Transaction t1 = new Transaction();
+        t1.setAsyncCommit(true);
+        t1.start();
+        insertRow(hf1, t1, 3);
+        t1.commit();
+        Thread.sleep(LogFlusher.INTERVAL_MS * 10);
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestUnloggedCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // T1 inserts into the unlogged table and aborts
+        // crash: the unlogged table is emptied
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf2, t1, 5);
+        Database.getBufferPool().flushAllPages();
+        t1.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        look(hf2, t, 5, false);
+        t.commit();
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        assertEquals(0, count(hf2, t));
+        t.commit();
+    }
+
+    @Test public void TestUnloggedCrashCachedPages()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        Database.getBufferPool().flushAllPages();
+
+        // *** Test:
+        // crash, then the unlogged table's pages are read into the pool
+        // before recovery empties the table: they must not survive it
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        TransactionId reader = new TransactionId();
+        Database.getBufferPool().getPage(reader, new HeapPageId(hf2.getId(), 0), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(reader);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        assertEquals(0, count(hf2, t));
+        t.commit();
+    }
+
+    @Test public void TestFreeSpaceAfterCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        // three pages: two full ones and one with a single tuple
+        Transaction t0 = new Transaction();
+        t0.start();
+        for (int i = 0; i < 1009; i++) {
+            Database.getBufferPool().insertTuple(t0.getId(), hf1.getId(), Utility.getHeapTuple(i, 2));
+        }
+        t0.commit();
+        Transaction t1 = new Transaction();
+        t1.start();
+        List<Tuple> deleting = new ArrayList<>();
+        SeqScan scan = new SeqScan(t1.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() < 1008) {
+                deleting.add(tu);
+            }
+        }
+        scan.close();
+        for (Tuple tu : deleting) {
+            Database.getBufferPool().deleteTuple(t1.getId(), tu);
+        }
+        t1.commit();
+
+        // *** Test:
+        // T2 fills the first two pages again, and the free space map saved
+        // by the checkpoint records them as full; the crash aborts T2, so
+        // the space is free again after recovery
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 1008; i++) {
+            Database.getBufferPool().insertTuple(t2.getId(), hf1.getId(), Utility.getHeapTuple(2000 + i, 2));
+        }
+        Database.getLogFile().logCheckpoint();
+        Database.getBufferPool().flushAllPages();
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(1, count(hf1, t));
+        for (int i = 0; i < 1000; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf1.getId(), Utility.getHeapTuple(3000 + i, 2));
+        }
+        assertEquals(3, hf1.numPages());
+        t.commit();
+    }
+
+    @Test public void TestUnloggedCleanShutdown()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        doInsert(hf1, 1, 2);
+        doInsert(hf2, 3, 4);
+
+        // *** Test:
+        // clean shutdown: the unlogged table is kept
+        // crash after the restart: the unlogged table is emptied
+        Database.getLogFile().shutdown();
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf2, t, 3, true);
+        look(hf2, t, 4, true);
+        t.commit();
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getCatalog().setUnlogged(hf2.getId(), true);
+        Database.getLogFile().recover();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        assertEquals(0, count(hf2, t));
+        t.commit();
+    }
+
+    @Test public void TestBulkLoadConcurrentInsert()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // T1 bulk loads, leaving room on its last page, but doesn't commit
+        // T2 inserts more than fits on page 0 and commits
+        // T1 aborts: only its own pages are emptied
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkLoad(hf1, t1, 0, 1000);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 600; i++) {
+            Database.getBufferPool().insertTuple(t2.getId(), hf1.getId(), Utility.getHeapTuple(new int[]{2000 + i, 0}));
+        }
+        t2.commit();
+
+        t1.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(600, count(hf1, t));
+        look(hf1, t, 0, false);
+        look(hf1, t, 2599, true);
+        t.commit();
+    }
+
+    @Test public void TestBulkLoadAbortCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // T1 bulk loads more than one extent and commits
+        // T2 bulk loads and aborts
+        // T3 bulk loads
+        // crash
+        Transaction t1 = new Transaction();
+        t1.start();
+        bulkLoad(hf1, t1, 0, 40000);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bulkLoad(hf2, t2, 0, 1000);
+        t2.transactionComplete(true);
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(40000, count(hf1, t));
+        assertEquals(0, count(hf2, t));
+        t.commit();
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        bulkLoad(hf2, t3, 0, 1000);
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        assertEquals(40000, count(hf1, t));
+        assertEquals(0, count(hf2, t));
+        look(hf1, t, 39999, true);
+        t.commit();
+    }
+
+    @Test public void TestVacuumCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+
+        // *** Test:
+        // T1 inserts three pages of tuples and commits
+        // T2 deletes two thirds of them and commits
+        // vacuum moves the rest to the first page and cuts off the others
+        // crash: redo replays updates to pages that are no longer there
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1009; i++) {
+            Database.getBufferPool().insertTuple(t1.getId(), hf1.getId(), Utility.getHeapTuple(new int[]{i, 0}));
+        }
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        List<Tuple> deleting = new ArrayList<>();
+        SeqScan scan = new SeqScan(t2.getId(), hf1.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple tu = scan.next();
+            if (((IntField) tu.getField(0)).getValue() % 3 != 0) {
+                deleting.add(tu);
+            }
+        }
+        scan.close();
+        for (Tuple tu : deleting) {
+            Database.getBufferPool().deleteTuple(t2.getId(), tu);
+        }
+        t2.commit();
+
+        assertEquals(2, hf1.vacuum());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(337, count(hf1, t));
+        look(hf1, t, 0, true);
+        look(hf1, t, 1, false);
+        look(hf1, t, 1008, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
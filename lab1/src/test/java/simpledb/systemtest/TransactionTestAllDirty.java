@@ -9,10 +9,10 @@ import simpledb.transaction.TransactionAbortedException;
 
 import java.io.IOException;
 
-import static org.junit.Assert.fail;
+import static org.junit.Assert.assertTrue;
 
 public class TransactionTestAllDirty extends SimpleDbTestBase {
-    @Test public void testAllDirtyFails()
+    @Test public void testAllDirtyIsStolen()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -25,11 +25,13 @@ public class TransactionTestAllDirty extends SimpleDbTestBase {
         // Insert a new row
         AbortEvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            AbortEvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException ignored) {}
+        // Scanning the table evicts the dirty page (STEAL) and reads it back
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(AbortEvictionTest.findMagicTuple(f, t));
         t.commit();
     }
 